@@ -3,43 +3,63 @@ package edu.ohio.ais.rundeck;
 import com.dtolabs.rundeck.core.execution.workflow.steps.FailureReason;
 import com.dtolabs.rundeck.core.execution.workflow.steps.StepException;
 import com.dtolabs.rundeck.core.execution.workflow.steps.StepFailureReason;
-import com.dtolabs.rundeck.core.storage.ResourceMeta;
-import com.dtolabs.rundeck.core.utils.IPropertyLookup;
 import com.dtolabs.rundeck.plugins.PluginLogger;
 import com.dtolabs.rundeck.plugins.step.PluginStepContext;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonParser;
+import edu.ohio.ais.rundeck.util.AtomicFile;
+import edu.ohio.ais.rundeck.util.DataTemplate;
+import edu.ohio.ais.rundeck.util.HttpClientCache;
+import edu.ohio.ais.rundeck.util.JsonFormatter;
+import edu.ohio.ais.rundeck.util.KeyStorageEntity;
+import edu.ohio.ais.rundeck.util.MultipartEntity;
 import edu.ohio.ais.rundeck.util.OAuthClient;
+import edu.ohio.ais.rundeck.util.OAuthClientRegistry;
+import edu.ohio.ais.rundeck.util.QueuedLogger;
+import edu.ohio.ais.rundeck.util.RequestBody;
+import edu.ohio.ais.rundeck.util.ResponseCodeMatcher;
 import edu.ohio.ais.rundeck.util.SecretBundleUtil;
+import edu.ohio.ais.rundeck.util.StreamingLogWriter;
+import edu.ohio.ais.rundeck.util.TruncatingWriter;
+import edu.ohio.ais.rundeck.util.XmlFormatter;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.ssl.SSLContextBuilder;
-import org.apache.http.util.EntityUtils;
-import org.dom4j.DocumentHelper;
-import org.dom4j.io.OutputFormat;
-import org.dom4j.io.XMLWriter;
+import org.apache.http.message.BasicHeader;
 import org.yaml.snakeyaml.LoaderOptions;
 import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.constructor.Constructor;
 import org.yaml.snakeyaml.constructor.SafeConstructor;
 
+import javax.xml.stream.XMLStreamException;
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 
 public class HttpBuilder {
     public static final String AUTH_NONE = "None";
@@ -48,6 +68,74 @@ public class HttpBuilder {
     public static final String XML_FORMAT = "xml";
     public static final String JSON_FORMAT = "json";
     public static final String[] HTTP_METHODS = {"GET", "POST", "PUT", "PATCH", "DELETE", "HEAD", "OPTIONS"};
+    public static final String BODY_TEXT = RequestBody.BODY_TEXT;
+    public static final String BODY_FILE = RequestBody.BODY_FILE;
+    public static final String BODY_KEY_STORAGE = RequestBody.BODY_KEY_STORAGE;
+    public static final String BODY_MULTIPART = RequestBody.BODY_MULTIPART;
+
+    /**
+     * How often, in milliseconds, a thread waiting on an asynchronous request
+     * wakes up to write queued log messages.
+     */
+    static final long ASYNC_LOG_INTERVAL = 250;
+
+    /**
+     * Size limit value for options that have no limit.
+     */
+    public static final int UNLIMITED = -1;
+
+    /**
+     * Default minimum time, in milliseconds, between log calls when a
+     * response is printed as it streams in.
+     */
+    public static final int DEFAULT_LOG_FLUSH_INTERVAL = 1000;
+
+    /**
+     * Default smallest request body, in bytes, sent with Expect: 100-continue
+     * when the expectContinue option is set.
+     */
+    public static final int DEFAULT_EXPECT_CONTINUE_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Number of threads the asynchronous request pool starts with.
+     */
+    static final int DEFAULT_ASYNC_THREADS = 32;
+
+    /**
+     * Most threads the asynchronous request pool grows to, whatever the
+     * fanOutParallelism option asks for.
+     */
+    static final int MAX_ASYNC_THREADS = 256;
+
+    private static final Gson gson = new Gson();
+
+    private static final ThreadLocal<Yaml> yaml = new ThreadLocal<Yaml>() {
+        @Override
+        protected Yaml initialValue() {
+            return new Yaml(new SafeConstructor(new LoaderOptions()));
+        }
+    };
+
+    /**
+     * Shared pool of daemon threads running the requests of a node fan-out.
+     * Its size is raised by {@link #ensureAsyncThreads(int)}, and requests
+     * beyond it wait in the queue.
+     */
+    private static final ThreadPoolExecutor asyncExecutor = new ThreadPoolExecutor(DEFAULT_ASYNC_THREADS, DEFAULT_ASYNC_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "http-step-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        asyncExecutor.allowCoreThreadTimeOut(true);
+    }
 
     private Integer maxAttempts = 5;
     private PluginLogger log;
@@ -78,10 +166,20 @@ public class HttpBuilder {
     }
 
     /**
-     * Synchronized map of all existing OAuth clients. This is indexed by
-     * the Client ID and the token URL so that we can store and re-use access tokens.
+     * Concurrent map of all existing OAuth clients. This is indexed by
+     * the Client ID, the token URL and a fingerprint of the client secret so
+     * that we can store and re-use access tokens. Defaults to the process-wide
+     * {@link OAuthClientRegistry}. Each client fetches its own tokens one
+     * caller at a time, so different clients never wait on each other.
      */
-    Map<String, OAuthClient> oauthClients = Collections.synchronizedMap(new HashMap<String, OAuthClient>());
+    Map<String, OAuthClient> oauthClients = OAuthClientRegistry.getClients();
+
+    /**
+     * The OAuth client that provided the auth header, and the step settings
+     * it was used with, to refresh the token when a request is rejected.
+     */
+    OAuthClient oauthClient;
+    OAuthClient.Settings oauthSettings;
 
     public enum Reason implements FailureReason {
         OAuthFailure,   // Failure from the OAuth protocol
@@ -89,39 +187,58 @@ public class HttpBuilder {
     }
 
 
+    /**
+     * Get the pooled client matching the transport settings in the options.
+     * The client is shared with every other request using the same settings
+     * and must not be closed by the caller.
+     *
+     * @param options All of the options provided to the plugin execution
+     * @return A shared, pooled HTTP client
+     * @throws GeneralSecurityException When the SSL context cannot be built
+     * @throws StepException When the proxy settings are incomplete
+     */
     public CloseableHttpClient getHttpClient(Map<String, Object> options) throws GeneralSecurityException, StepException {
-        HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
-
-        httpClientBuilder.disableAuthCaching();
-        httpClientBuilder.disableAutomaticRetries();
+        return getHttpClient(HttpStepConfig.of(options, log));
+    }
 
+    /**
+     * Get the pooled client matching the transport settings of a compiled
+     * step configuration.
+     *
+     * @param config The compiled step configuration
+     * @return A shared, pooled HTTP client
+     * @throws GeneralSecurityException When the SSL context cannot be built
+     * @throws StepException When the proxy settings are incomplete
+     */
+    public CloseableHttpClient getHttpClient(HttpStepConfig config) throws GeneralSecurityException, StepException {
+        HttpClientCache.TransportSettings settings = new HttpClientCache.TransportSettings()
+                .setMaxTotal(config.getMaxConnections())
+                .setMaxPerRoute(config.getMaxConnectionsPerRoute())
+                .setIdleTimeout(config.getConnectionIdleTimeout())
+                .setCompression(config.isAcceptCompressed());
+
+        // Only requests sent with Expect: 100-continue wait for it, so other
+        // steps share the default pool whatever their timeout option says.
+        if(config.isExpectContinue()) {
+            settings.setWaitForContinue(config.getExpectContinueTimeout());
+        }
 
-        if(!getBooleanOption(options, "sslVerify", true)) {
+        if(!config.isSslVerify()) {
             log.log(5,"Disabling all SSL certificate verification.");
-            SSLContextBuilder sslContextBuilder = new SSLContextBuilder();
-            sslContextBuilder.loadTrustMaterial(null, new TrustStrategy() {
-                @Override
-                public boolean isTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
-                    return true;
-                }
-            });
-
-            httpClientBuilder.setSSLHostnameVerifier(new NoopHostnameVerifier());
-            httpClientBuilder.setSSLContext(sslContextBuilder.build());
+            settings.setSslVerify(false);
         }
-        if(getBooleanOption(options, "useSystemProxySettings", false) && !getBooleanOption(options, "proxySettings", false)) {
+        if(config.isUseSystemProxySettings() && !config.isProxySettings()) {
             log.log(5, "Using proxy settings set on system");
-            String proxyHost = System.getProperty("http.proxyHost");
-            String proxyPort = System.getProperty("http.proxyPort");
+            String proxyHost = System.getProperty("http.proxyHost", "");
+            String proxyPort = System.getProperty("http.proxyPort", "");
             if (proxyPort.isEmpty() || proxyHost.isEmpty()) {
                 throw new StepException("proxyHost and proxyPort are required to use System Proxy Settings", StepFailureReason.ConfigurationFailure);
             }
-            HttpHost proxy = new HttpHost(proxyHost, Integer.parseInt(proxyPort), "http");
-            httpClientBuilder.setProxy(proxy);
+            settings.setProxy(new HttpHost(proxyHost, Integer.parseInt(proxyPort), "http"));
         }
-        if (getBooleanOption(options, "proxySettings", false)) {
-            String proxyIP = getStringOption(options, "proxyIP", "");
-            String proxyPort = getStringOption(options, "proxyPort", "");
+        if (config.isProxySettings()) {
+            String proxyIP = config.getProxyIP();
+            String proxyPort = config.getProxyPort();
 
             if (proxyIP.isEmpty() || proxyPort.isEmpty()) {
                 throw new StepException("Proxy IP and Proxy Port are required to use Proxy Settings.", StepFailureReason.ConfigurationFailure);
@@ -129,11 +246,10 @@ public class HttpBuilder {
 
             log.log(5, "proxy IP set in job: " + proxyIP);
             log.log(5, "proxy Port set in job: " + proxyPort);
-            HttpHost proxy = new HttpHost(proxyIP, Integer.parseInt(proxyPort), "http");
-            httpClientBuilder.setProxy(proxy);
+            settings.setProxy(new HttpHost(proxyIP, Integer.parseInt(proxyPort), "http"));
         }
 
-        return httpClientBuilder.build();
+        return HttpClientCache.getClient(settings);
     }
 
     /**
@@ -145,92 +261,81 @@ public class HttpBuilder {
      * @throws StepException Thrown when any error occurs
      */
     public void doRequest(Map<String, Object> options, HttpUriRequest request, Integer attempts) throws StepException {
+        doRequest(HttpStepConfig.of(options, log), request, attempts);
+    }
+
+    /**
+     * Execute a single request. This will call itself if it needs to refresh an OAuth token.
+     *
+     * @param config The compiled step configuration
+     * @param request The HTTP request we're supposed to execute
+     * @param attempts The attempt number
+     * @throws StepException Thrown when any error occurs
+     */
+    public void doRequest(HttpStepConfig config, HttpUriRequest request, Integer attempts) throws StepException {
         if(attempts > this.maxAttempts) {
             throw new StepException("Unable to complete request after maximum number of attempts.", StepFailureReason.IOFailure);
         }
         CloseableHttpResponse response = null;
-        String output = "";
         try {
-            response = this.getHttpClient(options).execute(request);
+            setExpectContinue(config, request);
+            response = this.getHttpClient(config).execute(request);
 
-            if(getBooleanOption(options,"printResponseCode",false)) {
+            if(config.isPrintResponseCode()) {
                 String responseCode = response.getStatusLine().toString();
                 log.log(2, "Response Code: " + responseCode);
             }
 
-            //print the response content
-            if(getBooleanOption(options,"printResponse",false)) {
-                output = getOutputForResponse(this.prettyPrint(response));
-                //print response
-                log.log(2, output);
-            }
+            //check response status, the body is only read by the consumers that need it
+            int actualCode = response.getStatusLine().getStatusCode();
 
-            if(getBooleanOption(options,"printResponseToFile",false)){
-                File file = new File(options.get("file").toString());
-                BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-                if( output.isEmpty() ){
-                    output = getOutputForResponse(this.prettyPrint(response));
-                }
+            // Sometimes we may need to refresh our OAuth token. This comes
+            // before the status check, which would reject the 401 first.
+            if(actualCode == OAuthClient.STATUS_AUTHORIZATION_REQUIRED && AUTH_OAUTH2.equals(config.getAuthentication())) {
+                log.log(5,"Warning: Got authorization required exception from " + request.getURI());
+                String accessToken = refreshAccessToken(request);
 
-                writer.write (output);
+                // Build a new request and call `doRequest` again. Release the
+                // rejected response's connection first. With 100 Continue the
+                // body wasn't sent, so it is only uploaded once, on the retry.
+                request.setHeader("Authorization", "Bearer " + accessToken);
 
-                //Close writer
-                writer.close();
+                log.log(5,"Authentication header set to Bearer " + accessToken);
+
+                response.close();
+                response = null;
+
+                this.doRequest(config, request, attempts + 1);
+                return;
             }
 
-            //check response status
-            int actualCode = response.getStatusLine().getStatusCode();
-            String responseCodeStr = getStringOption(options, "responseCode");
-            validateResponseCodeOrThrow(response, actualCode, responseCodeStr);
+            ResponseCodeMatcher expectedCodes = config.getResponseCodeMatcher();
+            boolean failed = !isAcceptedResponseCode(actualCode, expectedCodes);
+
+            try (ResponseBody body = ResponseBody.of(response)) {
+                boolean errorBody = failed && config.getMaxErrorBodySize() != 0;
+
+                if (config.isStatusOnly()) {
+                    log.log(5, "Checking the response status only, the response body is not read");
+                } else {
+                    writeResponse(config, body, errorBody);
+                }
+
+                if (failed) {
+                    throw new StepException(getFailureMessage(actualCode, expectedCodes,
+                            errorBody ? body : null, config.getMaxErrorBodySize()), Reason.HTTPFailure);
+                }
+            }
 
-            // Sometimes we may need to refresh our OAuth token.
-            if(response.getStatusLine().getStatusCode() == OAuthClient.STATUS_AUTHORIZATION_REQUIRED) {
+            // A 401 the step accepts still means it can't authenticate.
+            if(actualCode == OAuthClient.STATUS_AUTHORIZATION_REQUIRED) {
                 log.log(5,"Warning: Got authorization required exception from " + request.getURI());
 
-                // But only if we actually use OAuth for authentication
-                if(options.containsKey("authentication")) {
-                    if(AUTH_BASIC.equals(options.get("authentication"))) { // comparing this way avoids possible NPEs
-                        throw new StepException("Remote URL requires authentication but does not support BASIC.", StepFailureReason.ConfigurationFailure);
-                    } else if(options.get("authentication").toString().equals(AUTH_OAUTH2)) {
-                        log.log(5,"Attempting to refresh OAuth token and try again...");
-                        String accessToken;
-
-                        // Another thread might be trying to do the same thing.
-                        synchronized(this.oauthClients) {
-                            String clientKey = options.get("username").toString() + "@" + options.get("oauthTokenEndpoint").toString();
-
-                            OAuthClient client = this.oauthClients.get(clientKey);
-                            client.invalidateAccessToken();
-
-                            try {
-                                accessToken = client.getAccessToken();
-                            } catch(Exception e) {
-                                StepException se = new StepException("Error refreshing OAuth Access Token: " + e.getMessage(),
-                                        HttpBuilder.Reason.OAuthFailure);
-                                se.initCause(e);
-                                throw se;
-                            }
-
-                            // Don't forget to update the client map in case something changed
-                            this.oauthClients.put(clientKey, client);
-                        }
-
-                        // Build a new request and call `doRequest` again.
-                        request.setHeader("Authorization", "Bearer " + accessToken);
-
-                        log.log(5,"Authentication header set to Bearer " + accessToken);
-
-                        this.doRequest(options, request, attempts + 1);
-                    } else {
-                        throw new StepException("Remote URL requires authentication.", StepFailureReason.ConfigurationFailure);
-                    }
+                if(AUTH_BASIC.equals(config.getAuthentication())) {
+                    throw new StepException("Remote URL requires authentication but does not support BASIC.", StepFailureReason.ConfigurationFailure);
                 } else {
                     throw new StepException("Remote URL requires authentication.", StepFailureReason.ConfigurationFailure);
                 }
-            } else if(response.getStatusLine().getStatusCode() >= 400) {
-                responseCodeStr = getStringOption(options, "responseCode");
-                validateResponseCodeOrThrow(response, actualCode, responseCodeStr);
-
             }
         } catch (IOException e) {
             StepException ese = new StepException("Error when sending request: " + e.getMessage(), HttpBuilder.Reason.HTTPFailure);
@@ -251,98 +356,508 @@ public class HttpBuilder {
         }
     }
 
+    /**
+     * Get a new access token after the request was rejected with its token.
+     * Other requests may have been rejected with the same token, only the
+     * first of them fetches a new one.
+     *
+     * @param request The rejected request
+     * @return The new access token
+     * @throws StepException If no token was requested, or a new one can't be fetched
+     */
+    private String refreshAccessToken(HttpUriRequest request) throws StepException {
+        log.log(5,"Attempting to refresh OAuth token and try again...");
+        OAuthClient client = this.oauthClient;
+
+        if(client == null) {
+            throw new StepException("Remote URL requires authentication but no OAuth token was requested.",
+                    HttpBuilder.Reason.OAuthFailure);
+        }
+
+        try {
+            return client.refreshAccessToken(getBearerToken(request), log, this.oauthSettings);
+        } catch(Exception e) {
+            StepException se = new StepException("Error refreshing OAuth Access Token: " + e.getMessage(),
+                    HttpBuilder.Reason.OAuthFailure);
+            se.initCause(e);
+            throw se;
+        }
+    }
+
+    /**
+     * @return The bearer token sent with the request, or null if there is none
+     */
+    private static String getBearerToken(HttpUriRequest request) {
+        Header authorization = request.getFirstHeader("Authorization");
+        if(authorization == null || !authorization.getValue().startsWith("Bearer ")) {
+            return null;
+        }
+        return authorization.getValue().substring("Bearer ".length());
+    }
+
+    /**
+     * Ask the server for a 100 Continue response before sending a large body,
+     * so a request the server rejects (401, 413, ...) doesn't upload the body
+     * first. Only applies when the expectContinue option is set and the body
+     * is at least the threshold size, or of unknown size.
+     *
+     * @param config The compiled step configuration
+     * @param request The request about to be sent
+     */
+    void setExpectContinue(HttpStepConfig config, HttpUriRequest request) {
+        if(!config.isExpectContinue() || !(request instanceof HttpEntityEnclosingRequest) || !(request instanceof HttpRequestBase)) {
+            return;
+        }
+
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if(entity == null) {
+            return;
+        }
+
+        long length = entity.getContentLength();
+        if(length >= 0 && length < config.getExpectContinueThreshold()) {
+            return;
+        }
+
+        HttpRequestBase base = (HttpRequestBase) request;
+        RequestConfig requestConfig = base.getConfig() != null ? base.getConfig() : RequestConfig.DEFAULT;
+        if(!requestConfig.isExpectContinueEnabled()) {
+            log.log(5, "Waiting for 100 Continue before sending the request body");
+            base.setConfig(RequestConfig.copy(requestConfig).setExpectContinueEnabled(true).build());
+        }
+    }
+
+    /**
+     * Execute one request of a node fan-out on the shared asynchronous pool.
+     * Retries and OAuth token refreshes happen on the pool as well.
+     * Cancelling the returned future aborts the request. A cancelled future
+     * completes straight away, while the aborted request may still be
+     * unwinding on the pool; the callback runs only once it has.
+     *
+     * @param config The compiled step configuration
+     * @param request The HTTP request we're supposed to execute
+     * @param requestLog Logger used while executing the request
+     * @param whenFinished Run on the pool thread after the request, or null
+     * @return A future completed when the request finishes, or completed
+     *         exceptionally with the {@link StepException} describing the failure
+     */
+    CompletableFuture<Void> doRequestAsync(final HttpStepConfig config, final HttpUriRequest request,
+                                           PluginLogger requestLog, final Runnable whenFinished) {
+        final HttpBuilder worker = new HttpBuilder();
+        worker.setLog(requestLog);
+        worker.setMaxAttempts(this.maxAttempts);
+        worker.setOauthClients(this.oauthClients);
+        worker.oauthClient = this.oauthClient;
+        worker.oauthSettings = this.oauthSettings;
+
+        ensureAsyncThreads(config.getFanOutParallelism());
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        asyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(!future.isDone()) {
+                        worker.doRequest(config, request, 1);
+                        future.complete(null);
+                    }
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    if(whenFinished != null) {
+                        whenFinished.run();
+                    }
+                }
+            }
+        });
+
+        future.whenComplete((result, error) -> {
+            if(future.isCancelled()) {
+                request.abort();
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Grow the asynchronous request pool to at least the given number of
+     * threads, up to {@link #MAX_ASYNC_THREADS}. The pool never shrinks, so
+     * steps asking for different sizes don't resize it back and forth.
+     * Requests beyond the pool size wait in its queue.
+     *
+     * @param threads Number of requests the step keeps in flight
+     */
+    static void ensureAsyncThreads(int threads) {
+        int size = Math.min(Math.max(threads, 1), MAX_ASYNC_THREADS);
+
+        synchronized(asyncExecutor) {
+            if(size > asyncExecutor.getMaximumPoolSize()) {
+                asyncExecutor.setMaximumPoolSize(size);
+                asyncExecutor.setCorePoolSize(size);
+            }
+        }
+    }
+
+    /**
+     * Wait for an asynchronous request, writing its queued log messages from
+     * the current thread while waiting. Interrupting the waiting thread
+     * aborts the request.
+     *
+     * @param future The future returned by doRequestAsync
+     * @param requestLog The queue the request is logging to
+     * @throws StepException The failure of the request, or an interruption
+     */
+    void awaitRequest(Future<Void> future, QueuedLogger requestLog) throws StepException {
+        try {
+            while(true) {
+                try {
+                    future.get(ASYNC_LOG_INTERVAL, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    requestLog.drainTo(log);
+                }
+            }
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new StepException("Request was interrupted.", StepFailureReason.Interrupted);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof StepException) {
+                throw (StepException) cause;
+            }
+            StepException se = new StepException("Error when sending request: " + cause.getMessage(), Reason.HTTPFailure);
+            se.initCause(cause);
+            throw se;
+        } finally {
+            requestLog.drainTo(log);
+        }
+    }
+
     private String getOutputForResponse(String printer){
         return !printer.isEmpty() ? printer : "";
     }
 
-    private StringBuffer getPageContent(HttpResponse response) {
+    /**
+     * Send the response body to the log and output file as configured. The
+     * body is read from the connection once, and only buffered when more
+     * than one consumer needs it. The printed response is limited to the
+     * maxLoggedSize option, keeping its start and end. With streamResponse,
+     * the response is logged as it arrives instead, unformatted, and only
+     * its start is kept when it is limited.
+     *
+     * @param config The compiled step configuration
+     * @param body The response body
+     * @param failed True if the body is also needed for the error message
+     * @throws IOException If the body could not be read or written
+     */
+    private void writeResponse(HttpStepConfig config, final ResponseBody body, boolean failed) throws IOException {
+        boolean streamed = config.isPrintResponse() && config.isStreamResponse();
+        // The output file reuses the printed output, unless it may be truncated,
+        // is never held in full, or is binary and must be copied byte for byte.
+        boolean toFile = config.isPrintResponseToFile()
+                && (!config.isPrintResponse() || streamed || config.getMaxLoggedSize() != UNLIMITED || !body.isText());
+        int consumers = (config.isPrintResponse() ? 1 : 0) + (toFile ? 1 : 0) + (failed ? 1 : 0);
+
+        if (consumers > 1) {
+            // The first consumer still reads the body as it arrives.
+            body.bufferOnRead();
+        }
 
-        BufferedReader rd = null;
-        HttpEntity reponseEntity = response.getEntity();
-        StringBuffer result = new StringBuffer();
+        String output = "";
 
-        if ( reponseEntity != null ) {
+        //print the response content
+        if (streamed) {
+            StreamingLogWriter logWriter = new StreamingLogWriter(log, 2, config.getLogFlushInterval(), config.getMaxLoggedSize());
             try {
-                rd = new BufferedReader(new InputStreamReader(reponseEntity.getContent()));
-                String line = "";
-                while ((line = rd.readLine()) != null) {
-                    result.append(line);
-                    result.append(System.getProperty("line.separator"));
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+                // Pretty printing needs the whole document first, so the
+                // text is logged as sent.
+                copyText(body, logWriter);
             } finally {
-                if (rd != null) {
-                    try {
-                        rd.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                logWriter.close();
+            }
+        } else if (config.isPrintResponse()) {
+            TruncatingWriter formatted = new TruncatingWriter(config.getMaxLoggedSize(), body.getContentLength());
+            writeFormatted(body, formatted);
+            output = getOutputForResponse(formatted.toString());
+            //print response
+            log.log(2, output);
+        }
+
+        if (config.isPrintResponseToFile()) {
+            File file = new File(config.getFile());
+            final String content = output;
+
+            if (!toFile) {
+                AtomicFile.write(file, out -> writeText(content, body.getCharset(), out));
+            } else if (body.isFormatted()) {
+                // Reformat straight into the file as the body is read.
+                AtomicFile.write(file, out -> {
+                    Writer writer = new OutputStreamWriter(out, body.getCharset());
+                    writeFormatted(body, writer);
+                    writer.flush();
+                });
+            } else {
+                // Nothing to reformat, so copy the body straight to disk.
+                try (InputStream in = body.open()) {
+                    AtomicFile.copy(file, in);
                 }
             }
         }
+    }
 
-        return result;
+    private static void writeText(String text, Charset charset, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, charset);
+        writer.write(text);
+        writer.flush();
+    }
+
+    /**
+     * Copy a text body to the output as it arrives, decoded with the charset
+     * of the response and with its line endings unchanged.
+     */
+    private static void copyText(ResponseBody body, Writer output) throws IOException {
+        try (Reader in = body.openReader()) {
+            char[] chunk = new char[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                output.write(chunk, 0, read);
+            }
+        }
+        output.flush();
     }
 
     //print response
     public String prettyPrint(HttpResponse response){
+        StringWriter output;
+
+        try (ResponseBody body = ResponseBody.of(response)) {
+            output = new StringWriter(body.getBufferSize(UNLIMITED, 16));
+            writeFormatted(body, output);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error pretty printing response", e);
+        }
 
-        HttpEntity entity = response.getEntity();
-        ContentType contentType;
-        String mimeType="";
-        if (entity != null) {
-            contentType = ContentType.get(entity);
+        return output.toString();
+    }
 
-            if(contentType!=null) {
-                mimeType = contentType.getMimeType();
-            }
+    /**
+     * Write the response body to a writer, pretty printing JSON and XML.
+     * Both are reformatted as they are read, without holding the document in
+     * memory.
+     *
+     * @param body The response body
+     * @param output Receives the formatted body
+     * @throws IOException If the body can't be read or is not valid JSON
+     */
+    private void writeFormatted(ResponseBody body, Writer output) throws IOException {
+        String mimeType = body.getMimeType();
+
+        if (mimeType.contains(JSON_FORMAT)) {
+            writeFormattedJson(body, output);
+            return;
         }
 
-        String outputWithoutFormat=getPageContent(response).toString();
+        if (mimeType.contains(XML_FORMAT)) {
+            writeFormattedXml(body, output);
+            return;
+        }
 
-        String output = "";
+        copyText(body, output);
+    }
 
-        if(mimeType.contains(JSON_FORMAT) || mimeType.contains(XML_FORMAT)) {
+    /**
+     * Pretty print a JSON body. The body is buffered once, spilling to disk
+     * when large, so malformed JSON, or a body holding more than one JSON
+     * value, can be written out unchanged instead.
+     */
+    private void writeFormattedJson(ResponseBody body, Writer output) throws IOException {
+        body.buffer();
 
-            if (mimeType.contains(JSON_FORMAT)) {
-                output = new GsonBuilder().setPrettyPrinting().create().toJson(new JsonParser().parse(outputWithoutFormat));
+        boolean wellFormed;
+        try (Reader reader = body.openReader()) {
+            wellFormed = JsonFormatter.isWellFormed(reader);
+        }
+
+        if (wellFormed) {
+            try (Reader reader = body.openReader()) {
+                JsonFormatter.format(reader, output);
+                return;
             }
+        }
 
-            if (mimeType.contains(XML_FORMAT)) {
-                StringWriter sw;
+        log.log(5, "Response is not well formed JSON, printing it unformatted");
+        copyText(body, output);
+    }
 
-                try {
-                    final OutputFormat format = OutputFormat.createPrettyPrint();
-                    final org.dom4j.Document document = DocumentHelper.parseText(outputWithoutFormat);
-                    sw = new StringWriter();
-                    final XMLWriter writer = new XMLWriter(sw, format);
-                    writer.write(document);
-                }
-                catch (Exception e) {
-                    throw new RuntimeException("Error pretty printing xml:\n" + outputWithoutFormat, e);
-                }
+    /**
+     * Pretty print an XML body. The body is buffered once, spilling to disk
+     * when large, so malformed XML can be written out unchanged instead.
+     */
+    private void writeFormattedXml(ResponseBody body, Writer output) throws IOException {
+        body.buffer();
+
+        boolean wellFormed;
+        try (InputStream in = body.open()) {
+            wellFormed = XmlFormatter.isWellFormed(in);
+        }
 
-                output = sw.toString();
+        if (wellFormed) {
+            try (InputStream in = body.open()) {
+                XmlFormatter.format(in, output);
+                return;
+            } catch (XMLStreamException e) {
+                throw new IOException("Error pretty printing xml: " + e.getMessage(), e);
             }
-        }else{
-            output=outputWithoutFormat;
         }
 
-        return output;
+        log.log(5, "Response is not well formed XML, printing it unformatted");
+        copyText(body, output);
+    }
+
+
+
+    /**
+     * Create the request body from the configured body source. File and key
+     * storage bodies are streamed when the request is sent, and never held
+     * in memory. Every body is repeatable, so it can be retried and shared
+     * between requests.
+     *
+     * @param pluginStepContext The step context, for key storage access
+     * @param config The compiled step configuration
+     * @param renderer Replaces data references in the body or its path
+     * @return The request body, or null if there is none
+     * @throws StepException If the body file or key can't be read
+     */
+    HttpEntity createBody(PluginStepContext pluginStepContext, HttpStepConfig config, UnaryOperator<String> renderer) throws StepException {
+        DataTemplate template = config.getBodyTemplate();
+        if(template == null) {
+            return null;
+        }
+
+        return compressBody(createUncompressedBody(pluginStepContext, config, template, renderer), config.getCompressRequestThreshold());
+    }
+
+    /**
+     * Gzip a request body at or above the size threshold. Bodies of unknown
+     * length are always compressed once a threshold is set. The compressed
+     * body is sent chunked, with a gzip Content-Encoding.
+     *
+     * @param body The request body
+     * @param threshold Smallest body to compress, in bytes, or
+     *                  {@link #UNLIMITED} to never compress
+     * @return The body to send
+     */
+    HttpEntity compressBody(HttpEntity body, int threshold) {
+        if(threshold == UNLIMITED) {
+            return body;
+        }
+
+        long length = body.getContentLength();
+        if(length >= 0 && length < threshold) {
+            return body;
+        }
+
+        log.log(5, "Compressing the request body with gzip");
+        return new GzipCompressingEntity(body);
+    }
+
+    private HttpEntity createUncompressedBody(PluginStepContext pluginStepContext, HttpStepConfig config, DataTemplate template,
+                                              UnaryOperator<String> renderer) throws StepException {
+        if(BODY_FILE.equals(config.getBodySource())) {
+            File file = openBodyFile(template.render(renderer));
+            log.log(5, "Sending request body from file " + file + " (" + file.length() + " bytes)");
+            return new FileEntity(file);
+        }
+
+        if(BODY_KEY_STORAGE.equals(config.getBodySource())) {
+            String path = template.render(renderer);
+            KeyStorageEntity entity = openBodyKey(pluginStepContext, path);
+            log.log(5, "Sending request body from key storage " + path);
+            return entity;
+        }
+
+        if(BODY_MULTIPART.equals(config.getBodySource())) {
+            List<MultipartEntity.Part> parts = createParts(pluginStepContext, template.render(renderer));
+            log.log(5, "Sending multipart request body with " + parts.size() + " parts");
+            return new MultipartEntity(parts, config.isMultipartContentLength());
+        }
+
+        return new ByteArrayEntity(template.renderBytes(renderer));
+    }
+
+    private static File openBodyFile(String path) throws StepException {
+        File file = new File(path);
+        if(!file.isFile() || !file.canRead()) {
+            throw new StepException("Cannot read request body file: " + file, StepFailureReason.ConfigurationFailure);
+        }
+        return file;
+    }
+
+    private static KeyStorageEntity openBodyKey(PluginStepContext pluginStepContext, String path) throws StepException {
+        try {
+            return new KeyStorageEntity(pluginStepContext.getExecutionContext().getStorageTree(), path);
+        } catch (RuntimeException e) {
+            throw new StepException("Cannot read request body from key storage: " + path + ": " + e.getMessage(),
+                    e, StepFailureReason.ConfigurationFailure);
+        }
     }
 
+    /**
+     * Build the parts of a multipart body from a JSON or YAML list. Each part
+     * has a name and one of value, file or keyStorage, and optionally a
+     * contentType and filename.
+     */
+    private static List<MultipartEntity.Part> createParts(PluginStepContext pluginStepContext, String spec) throws StepException {
+        List<MultipartEntity.Part> parts = new ArrayList<>();
+
+        for(Map<?, ?> part : RequestBody.parseParts(spec)) {
+            String name = RequestBody.partOption(part, "name");
+            String value = RequestBody.partOption(part, "value");
+            String file = RequestBody.partOption(part, "file");
+            String key = RequestBody.partOption(part, "keyStorage");
+            String contentType = RequestBody.partOption(part, "contentType");
+            String filename = RequestBody.partOption(part, "filename");
+
+            HttpEntity content;
+            if(file != null) {
+                File partFile = openBodyFile(file);
+                content = new FileEntity(partFile);
+                filename = filename != null ? filename : partFile.getName();
+                contentType = contentType != null ? contentType : ContentType.APPLICATION_OCTET_STREAM.getMimeType();
+            } else if(key != null) {
+                content = openBodyKey(pluginStepContext, key);
+                filename = filename != null ? filename : key.substring(key.lastIndexOf('/') + 1);
+                contentType = contentType != null ? contentType : ContentType.APPLICATION_OCTET_STREAM.getMimeType();
+            } else {
+                content = new ByteArrayEntity(value.getBytes(StandardCharsets.UTF_8));
+            }
+
+            try {
+                parts.add(new MultipartEntity.Part(name, filename, contentType, content));
+            } catch (IllegalArgumentException e) {
+                throw new StepException(e.getMessage(), e, StepFailureReason.ConfigurationFailure);
+            }
+        }
 
+        return parts;
+    }
 
-    String getAuthHeader(PluginStepContext pluginStepContext,  Map<String, Object> options) throws StepException {
-        String authentication = getStringOption(options, "authentication",AUTH_NONE);
+    /**
+     * @param passwordRaw The password option, a key storage path or the
+     *                    password itself. It is kept out of the compiled
+     *                    configuration, see {@link HttpStepConfig#getPassword(Map)}.
+     */
+    String getAuthHeader(PluginStepContext pluginStepContext, HttpStepConfig config, String passwordRaw) throws StepException {
+        String authentication = config.getAuthentication();
         //moving the password to the key storage
         String password=null;
         String authHeader = null;
 
 
-        if(options.containsKey("password") ){
-            String passwordRaw = getStringOption(options, "password");
+        if(passwordRaw != null){
             //to avid the test error add a try-catch
             //if it didn't find the key path, it will use the password directly
             byte[] content = SecretBundleUtil.getStoragePassword(pluginStepContext.getExecutionContext(),passwordRaw );
@@ -356,7 +871,7 @@ public class HttpBuilder {
 
         if(authentication.equals(AUTH_BASIC)) {
             // Setup the authentication header for BASIC
-            String username = getStringOption(options, "username");
+            String username = config.getUsername();
 
             if(username == null || password == null) {
                 throw new StepException("Username and password not provided for BASIC Authentication",
@@ -369,9 +884,9 @@ public class HttpBuilder {
             authHeader = "Basic " + com.dtolabs.rundeck.core.utils.Base64.encode(authHeader);
         } else if (authentication.equals(AUTH_OAUTH2)) {
             // Get an OAuth token and setup the auth header for OAuth
-            String tokenEndpoint = getStringOption(options, "oauthTokenEndpoint");
-            String validateEndpoint = getStringOption(options, "oauthValidateEndpoint");
-            String clientId = getStringOption(options, "username");
+            String tokenEndpoint = config.getOauthTokenEndpoint();
+            String validateEndpoint = config.getOauthValidateEndpoint();
+            String clientId = config.getUsername();
 
 
 
@@ -383,44 +898,47 @@ public class HttpBuilder {
                         StepFailureReason.ConfigurationFailure);
             }
 
-            String clientKey = clientId + "@" + tokenEndpoint;
+            String clientKey = OAuthClientRegistry.key(clientId, tokenEndpoint, clientSecret);
             String accessToken;
 
-            // Another thread may be trying to do the same thing.
-            synchronized(this.oauthClients) {
-                OAuthClient client;
-
-                if(this.oauthClients.containsKey(clientKey)) {
-                    // Update the existing client with our options if it exists.
-                    // We do this so that changes to configuration will always
-                    // update clients on next run.
-                    log.log(5,"Found existing OAuth client with key " + clientKey);
-                    client = this.oauthClients.get(clientKey);
-                    client.setCredentials(clientId, clientSecret);
-                    client.setValidateEndpoint(validateEndpoint);
-                } else {
-                    // Create a brand new client
-                    log.log(5,"Creating new OAuth client with key " + clientKey);
-                    client = new OAuthClient(OAuthClient.GrantType.CLIENT_CREDENTIALS, log);
-                    client.setCredentials(clientId, clientSecret);
-                    client.setTokenEndpoint(tokenEndpoint);
-                    client.setValidateEndpoint(validateEndpoint);
-                }
+            OAuthClientRegistry.evictIdle();
+            OAuthClient client = this.oauthClients.computeIfAbsent(clientKey, key -> {
+                // Create a brand new client
+                log.log(5,"Creating new OAuth client with key " + key);
+                OAuthClient created = new OAuthClient(OAuthClient.GrantType.CLIENT_CREDENTIALS);
+                created.setCredentials(clientId, clientSecret);
+                created.setTokenEndpoint(tokenEndpoint);
+                return created;
+            });
 
-                // Grab the access token
-                try {
-                    log.log(5,"Attempting to fetch access token...");
-                    accessToken = client.getAccessToken();
-                } catch(Exception ex) {
-                    StepException se = new StepException("Error obtaining OAuth Access Token: " + ex.getMessage(),
-                            HttpBuilder.Reason.OAuthFailure);
-                    se.initCause(ex);
-                    throw se;
-                }
+            // The client is shared with steps that may use other settings, so
+            // ours go with each call instead of being set on the client. Token
+            // requests share the step's connection pool, SSL and proxy settings.
+            OAuthClient.Settings settings;
+            try {
+                settings = new OAuthClient.Settings(this.getHttpClient(config), config.getOauthTimeout(), validateEndpoint,
+                        config.getOauthValidateTtl() * 1000L, config.isOauthValidateAsync());
+            } catch (GeneralSecurityException e) {
+                StepException se = new StepException("Error obtaining OAuth Access Token: " + e.getMessage(),
+                        HttpBuilder.Reason.OAuthFailure);
+                se.initCause(e);
+                throw se;
+            }
 
-                this.oauthClients.put(clientKey, client);
+            // Grab the access token. Only one caller per client fetches a new
+            // token, the others wait for it.
+            try {
+                log.log(5,"Attempting to fetch access token...");
+                accessToken = client.getAccessToken(log, settings);
+            } catch(Exception ex) {
+                StepException se = new StepException("Error obtaining OAuth Access Token: " + ex.getMessage(),
+                        HttpBuilder.Reason.OAuthFailure);
+                se.initCause(ex);
+                throw se;
             }
 
+            this.oauthClient = client;
+            this.oauthSettings = settings;
             authHeader = "Bearer " + accessToken;
         }
 
@@ -428,29 +946,72 @@ public class HttpBuilder {
     }
 
 
+    /**
+     * Set the headers parsed by a compiled step configuration on the request.
+     *
+     * @param config The compiled step configuration
+     * @param request The request being built
+     */
+    public void setHeaders(HttpStepConfig config, RequestBuilder request){
+        setHeaders(config.getParsedHeaders(), request);
+    }
+
     public void setHeaders(String headers, RequestBuilder request){
-        Map<String, Object> map = parseHeaders(headers);
-        if (map == null) {
+        setHeaders(compileHeaders(headers), request);
+    }
+
+    private void setHeaders(Header[] headers, RequestBuilder request) {
+        if (headers == null) {
             log.log(0, "Error parsing the headers");
             return;
         }
+        for (Header header : headers) {
+            request.setHeader(header.getName(), header.getValue());
+        }
+    }
+
+    /**
+     * Parse a JSON or YAML header map into request headers. Headers may hold
+     * credentials, so they are not cached here; a compiled step configuration
+     * parses them once per execution.
+     *
+     * @param headers The raw headers option
+     * @return The headers, or null if they could not be parsed
+     */
+    static Header[] compileHeaders(String headers) {
+        if (headers == null) {
+            return null;
+        }
+
+        Map<String, Object> map = parseHeaders(headers);
+        if (map == null) {
+            return null;
+        }
+
+        Header[] compiled = new Header[map.size()];
+        int i = 0;
         for (Map.Entry<String, Object> entry : map.entrySet()) {
-            request.setHeader(entry.getKey(), headerValueToString(entry.getValue()));
+            compiled[i++] = new BasicHeader(entry.getKey(), headerValueToString(entry.getValue()));
         }
+        return compiled;
     }
 
     @SuppressWarnings("unchecked")
-    private static Map<String, Object> parseHeaders(String headers) {
-        try {
-            Object parsed = new Gson().fromJson(headers, HashMap.class);
-            if (parsed instanceof Map) {
-                return (Map<String, Object>) parsed;
+    static Map<String, Object> parseHeaders(String headers) {
+        // Only a JSON object can parse to a map, so skip straight to YAML
+        // for anything else.
+        if (startsWith(headers, '{')) {
+            try {
+                Object parsed = gson.fromJson(headers, HashMap.class);
+                if (parsed instanceof Map) {
+                    return (Map<String, Object>) parsed;
+                }
+            } catch (Exception ignored) {
+                // fall through to YAML
             }
-        } catch (Exception ignored) {
-            // fall through to YAML
         }
         try {
-            Object parsed = new Yaml(new SafeConstructor(new LoaderOptions())).load(headers);
+            Object parsed = yaml.get().load(headers);
             if (parsed instanceof Map) {
                 return (Map<String, Object>) parsed;
             }
@@ -460,6 +1021,15 @@ public class HttpBuilder {
         return null;
     }
 
+    private static boolean startsWith(String value, char c) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isWhitespace(value.charAt(i))) {
+                return value.charAt(i) == c;
+            }
+        }
+        return false;
+    }
+
     static String headerValueToString(Object value) {
         if (value instanceof Double) {
             double d = (Double) value;
@@ -471,25 +1041,6 @@ public class HttpBuilder {
         return String.valueOf(value);
     }
 
-    static void propertyResolver(String pluginType, String property, Map<String,Object> Configuration, PluginStepContext context, String SERVICE_PROVIDER_NAME) {
-
-        String projectPrefix = "project.plugin." + pluginType + "." + SERVICE_PROVIDER_NAME + ".";
-        String frameworkPrefix = "framework.plugin." + pluginType + "." + SERVICE_PROVIDER_NAME + ".";
-
-        Map<String,String> projectProperties = context.getFramework().getFrameworkProjectMgr().getFrameworkProject(context.getFrameworkProject()).getProperties();
-        IPropertyLookup frameworkProperties = context.getFramework().getPropertyLookup();
-
-        if(!Configuration.containsKey(property) && projectProperties.containsKey(projectPrefix + property)) {
-
-            Configuration.put(property, projectProperties.get(projectPrefix + property));
-
-        } else if (!Configuration.containsKey(property) && frameworkProperties.hasProperty(frameworkPrefix + property)) {
-
-            Configuration.put(property, frameworkProperties.getProperty(frameworkPrefix + property));
-
-        }
-    }
-
     /**
      * Retrieves a string value from the options map.
      * If the key does not exist or the value is null, it returns null.
@@ -554,85 +1105,91 @@ public class HttpBuilder {
      *   <li>Comma-separated combinations of any of the above (e.g., "200,204-206,2xx")</li>
      * </ul>
      *
-     * Malformed entries are ignored with a warning log.
+     * Malformed entries are ignored. The expression is compiled once and
+     * cached, see {@link ResponseCodeMatcher}.
      *
      * @param actualCode the HTTP response code returned by the server
      * @param responseCodeStr the expected response codes or patterns, as a comma-separated string
      * @return true if the actualCode matches any pattern or value in responseCodeStr; false otherwise
      */
     public static boolean isExpectedResponseCode(int actualCode, String responseCodeStr) {
-        if (responseCodeStr == null || responseCodeStr.trim().isEmpty()) {
-            return false;
-        }
-
-        for (String codePattern : responseCodeStr.split(",")) {
-            codePattern = codePattern.trim();
-
-            try {
-                if (codePattern.matches("\\d{3}")) {
-                    if (actualCode == Integer.parseInt(codePattern)) {
-                        return true;
-                    }
-                } else if (codePattern.matches("\\d{3}-\\d{3}")) {
-                    String[] parts = codePattern.split("-");
-                    int start = Integer.parseInt(parts[0]);
-                    int end = Integer.parseInt(parts[1]);
-                    if (actualCode >= start && actualCode <= end) {
-                        return true;
-                    }
-                } else if (codePattern.matches("\\dxx")) {
-                    int hundreds = Integer.parseInt(codePattern.substring(0, 1)) * 100;
-                    if (actualCode >= hundreds && actualCode < hundreds + 100) {
-                        return true;
-                    }
-                }
-            } catch (NumberFormatException ex) {
-                // Log at a low level
-                System.err.println("Warning: Ignoring malformed responseCode entry: '" + codePattern + "'");
-            }
-        }
-
-        return false;
+        return ResponseCodeMatcher.compile(responseCodeStr).matches(actualCode);
     }
 
 
 
     /**
-     * Validates the HTTP response code against a list or range of acceptable values.
+     * Checks the HTTP response code against a list or range of acceptable values.
      *
-     * <p>If a responseCode string is provided (e.g. "200,204-206,2xx"), this method checks if
-     * the actual response code matches any of the defined values or patterns. If it does not,
-     * a StepException is thrown.</p>
+     * <p>If a responseCode expression is provided (e.g. "200,204-206,2xx"), the actual
+     * response code must match one of the defined values or patterns.</p>
      *
      * <p>If no responseCode is provided, the default behavior is to fail on any code
      * greater than or equal to 400.</p>
      *
-     * @param response the {@link HttpResponse} returned by the HTTP client
      * @param actualCode the actual HTTP status code from the response
-     * @param responseCodeStr the user-defined expected response code(s), which may include comma-separated values, ranges (e.g. "200-206"), or wildcard groups (e.g. "2xx").
+     * @param expectedCodes the compiled user-defined expected response code(s)
+     * @return true if the response code is acceptable
+     */
+    private static boolean isAcceptedResponseCode(int actualCode, ResponseCodeMatcher expectedCodes) {
+        if (expectedCodes.isDefined()) {
+            return expectedCodes.matches(actualCode);
+        }
+        return actualCode < 400;
+    }
+
+    /**
+     * Build the error message for a response with an unacceptable status code,
+     * including the response body when there is one.
+     *
+     * @param actualCode the actual HTTP status code from the response
+     * @param expectedCodes the compiled user-defined expected response code(s)
+     * @param body the response body, or null to leave it out
+     * @param maxBodySize maximum number of body bytes to include, or {@link #UNLIMITED}
+     * @return the error message
      * @throws IOException if an error occurs reading the response body
-     * @throws StepException if the response code is unexpected or represents a failure
-     */
-    private void validateResponseCodeOrThrow(HttpResponse response, int actualCode, String responseCodeStr) throws IOException, StepException {
-        if (responseCodeStr != null && !responseCodeStr.trim().isEmpty()) {
-            if (!isExpectedResponseCode(actualCode, responseCodeStr)) {
-                String message = "Unexpected response code: " + actualCode;
-                String body = EntityUtils.toString(response.getEntity());
-                if (!body.isEmpty()) {
-                    message += ": " + body;
-                }
-                throw new StepException(message, Reason.HTTPFailure);
-            }
-        } else {
-            if (actualCode >= 400) {
-                String message = "HTTP request failed with status code: " + actualCode;
-                String body = EntityUtils.toString(response.getEntity());
-                if (!body.isEmpty()) {
-                    message += ": " + body;
-                }
-                throw new StepException(message, Reason.HTTPFailure);
+     */
+    private String getFailureMessage(int actualCode, ResponseCodeMatcher expectedCodes, ResponseBody body, int maxBodySize) throws IOException {
+        String message = expectedCodes.isDefined()
+                ? "Unexpected response code: " + actualCode
+                : "HTTP request failed with status code: " + actualCode;
+
+        if (body == null) {
+            return message;
+        }
+
+        String text;
+        try (InputStream in = body.open()) {
+            text = readText(in, body.getCharset(), maxBodySize, body.getBufferSize(maxBodySize, 8192));
+        }
+
+        if (!text.isEmpty()) {
+            message += ": " + text;
+        }
+        return message;
+    }
+
+    /**
+     * Read text from a stream, stopping after a number of bytes. Text that
+     * was cut short ends with "...".
+     */
+    private static String readText(InputStream in, Charset charset, int maxBytes, int bufferSize) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(bufferSize);
+        byte[] chunk = new byte[8192];
+        boolean truncated = false;
+        int read;
+
+        while ((read = in.read(chunk)) != -1) {
+            if (maxBytes != UNLIMITED && bytes.size() + read > maxBytes) {
+                bytes.write(chunk, 0, maxBytes - bytes.size());
+                truncated = true;
+                break;
             }
+            bytes.write(chunk, 0, read);
         }
+
+        String text = new String(bytes.toByteArray(), charset);
+        return truncated ? text + "..." : text;
     }
 
 
@@ -6,21 +6,34 @@ import com.dtolabs.rundeck.core.plugins.configuration.PropertyScope;
 import com.dtolabs.rundeck.core.plugins.configuration.StringRenderingConstants;
 import com.dtolabs.rundeck.plugins.util.DescriptionBuilder;
 import com.dtolabs.rundeck.plugins.util.PropertyBuilder;
+import edu.ohio.ais.rundeck.util.HttpClientCache;
+import edu.ohio.ais.rundeck.util.OAuthClient;
 
 public class HttpDescription  implements Describable {
     String serviceName;
     String title;
     String description;
+    boolean workflowStep;
 
     public HttpDescription(String serviceName, String title, String description) {
+        this(serviceName, title, description, false);
+    }
+
+    /**
+     * @param workflowStep True to include the properties only the workflow
+     *                     step supports: the execution mode, and sending one
+     *                     request per target node from a single step.
+     */
+    public HttpDescription(String serviceName, String title, String description, boolean workflowStep) {
         this.serviceName = serviceName;
         this.title = title;
         this.description = description;
+        this.workflowStep = workflowStep;
     }
 
     @Override
     public Description getDescription() {
-        return DescriptionBuilder.builder()
+        DescriptionBuilder builder = DescriptionBuilder.builder()
                 .name(serviceName)
                 .title(title)
                 .description(description)
@@ -50,12 +63,98 @@ public class HttpDescription  implements Describable {
                         .description("Add Body.")
                         .renderingAsTextarea()
                         .build())
+                .property(PropertyBuilder.builder()
+                        .select("bodySource")
+                        .title("Body Source")
+                        .description("Where the request body comes from. Text sends the Body option. File and Key Storage " +
+                                "stream the body from a file on the Rundeck server or a key storage resource, so large " +
+                                "uploads don't have to be loaded into memory. Multipart sends the Multipart Parts as a " +
+                                "multipart/form-data body.")
+                        .required(false)
+                        .defaultValue(HttpBuilder.BODY_TEXT)
+                        .values(HttpBuilder.BODY_TEXT, HttpBuilder.BODY_FILE, HttpBuilder.BODY_KEY_STORAGE, HttpBuilder.BODY_MULTIPART)
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .string("bodyFile")
+                        .title("Body File")
+                        .description("Path of the file to send as the request body, when Body Source is File.")
+                        .required(false)
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .string("bodyStoragePath")
+                        .title("Body Key Storage Path")
+                        .description("Key storage resource to send as the request body, when Body Source is Key Storage.")
+                        .required(false)
+                        .renderingOption(StringRenderingConstants.SELECTION_ACCESSOR_KEY,
+                                StringRenderingConstants.SelectionAccessor.STORAGE_PATH)
+                        .renderingOption(StringRenderingConstants.STORAGE_PATH_ROOT_KEY, "keys")
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .string("multipartParts")
+                        .title("Multipart Parts")
+                        .description("Parts of a multipart body, as a list in json or yaml format, when Body Source is Multipart. " +
+                                "Each part has a name and one of value, file or keyStorage, and may set contentType and filename. " +
+                                "For example:\n\n" +
+                                "    - name: manifest\n" +
+                                "      value: '{\"version\": \"1.2\"}'\n" +
+                                "      contentType: application/json\n" +
+                                "    - name: bundle\n" +
+                                "      file: /var/lib/firmware/bundle.bin")
+                        .required(false)
+                        .renderingAsTextarea()
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .booleanType("multipartContentLength")
+                        .title("Send Part Lengths?")
+                        .description("Send a Content-Length header with each multipart part whose length is known.")
+                        .defaultValue("false")
+                        .required(false)
+                        .build())
                 .property(PropertyBuilder.builder()
                         .integer("timeout")
                         .title("Request Timeout")
                         .description("How long to wait for a request to complete before failing.")
                         .defaultValue(HttpWorkflowStepPlugin.DEFAULT_TIMEOUT.toString())
                         .build())
+                .property(PropertyBuilder.builder()
+                        .booleanType("acceptCompressed")
+                        .title("Accept Compressed Responses?")
+                        .description("Compressed responses are asked for and decompressed as they are read by default. " +
+                                "Turn off to ask for uncompressed responses and receive the response exactly as the server sends it.")
+                        .defaultValue("true")
+                        .required(false)
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .integer("compressRequestThreshold")
+                        .title("Compress Request Bodies From")
+                        .description("Send request bodies of at least this many bytes gzip compressed, with a gzip " +
+                                "Content-Encoding. Only use it with servers that accept compressed requests. " +
+                                "Leave empty to never compress.")
+                        .required(false)
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .booleanType("expectContinue")
+                        .title("Expect 100 Continue?")
+                        .description("Send Expect: 100-continue with large request bodies, so a request the server rejects " +
+                                "(for example with 401 or 413) fails before the body is uploaded.")
+                        .defaultValue("false")
+                        .required(false)
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .integer("expectContinueThreshold")
+                        .title("Expect 100 Continue From")
+                        .description("Smallest request body, in bytes, sent with Expect: 100-continue. Bodies of unknown " +
+                                "size always are.")
+                        .defaultValue(String.valueOf(HttpBuilder.DEFAULT_EXPECT_CONTINUE_THRESHOLD))
+                        .required(false)
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .integer("expectContinueTimeout")
+                        .title("Expect 100 Continue Timeout")
+                        .description("Milliseconds to wait for the server to answer 100 Continue before sending the body anyway.")
+                        .defaultValue(HttpClientCache.DEFAULT_WAIT_FOR_CONTINUE.toString())
+                        .required(false)
+                        .build())
                 .property(PropertyBuilder.builder()
                         .booleanType("sslVerify")
                         .title("Validate SSL Certificates")
@@ -103,6 +202,32 @@ public class HttpDescription  implements Describable {
                         .required(false)
                         .renderingOption(StringRenderingConstants.GROUP_NAME,"Authentication")
                         .build())
+                .property(PropertyBuilder.builder()
+                        .integer("oauthValidateTtl")
+                        .title("OAuth Validation Lifetime")
+                        .description("Seconds a validated token is trusted before it is validated again. " +
+                                "Leave empty to validate each token once.")
+                        .required(false)
+                        .renderingOption(StringRenderingConstants.GROUP_NAME,"Authentication")
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .booleanType("oauthValidateAsync")
+                        .title("Validate OAuth Tokens in Background?")
+                        .description("Validate new tokens while the first request that uses them is sent, instead of " +
+                                "before. A token that fails validation is discarded, and later tokens for the same " +
+                                "client are validated before use.")
+                        .defaultValue("false")
+                        .required(false)
+                        .renderingOption(StringRenderingConstants.GROUP_NAME,"Authentication")
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .integer("oauthTimeout")
+                        .title("OAuth Request Timeout")
+                        .description("How long to wait for the token and validate endpoints before failing.")
+                        .defaultValue(OAuthClient.DEFAULT_TIMEOUT.toString())
+                        .required(false)
+                        .renderingOption(StringRenderingConstants.GROUP_NAME,"Authentication")
+                        .build())
                 .property(PropertyBuilder.builder()
                         .string("responseCode")
                         .title("Expected Response Code")
@@ -111,6 +236,22 @@ public class HttpDescription  implements Describable {
                         .required(false)
                         .renderingOption(StringRenderingConstants.GROUP_NAME,"Check Response")
                         .build())
+                .property(PropertyBuilder.builder()
+                        .booleanType("statusOnly")
+                        .title("Check Status Only?")
+                        .description("Decide success from the response status without downloading the response body. " +
+                                "The response is not printed, and can't be written to a file.")
+                        .defaultValue("false")
+                        .renderingOption(StringRenderingConstants.GROUP_NAME,"Check Response")
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .integer("maxErrorBodySize")
+                        .title("Max Error Body Size")
+                        .description("Maximum number of bytes of the response body to include in failure messages. " +
+                                "Leave empty for no limit, or no body when checking the status only.")
+                        .required(false)
+                        .renderingOption(StringRenderingConstants.GROUP_NAME,"Check Response")
+                        .build())
                 .property(PropertyBuilder.builder()
                         .booleanType("printResponse")
                         .title("Print Response?")
@@ -118,6 +259,33 @@ public class HttpDescription  implements Describable {
                         .defaultValue("false")
                         .renderingOption(StringRenderingConstants.GROUP_NAME,"Print")
                         .build())
+                .property(PropertyBuilder.builder()
+                        .integer("maxLoggedSize")
+                        .title("Max Printed Size")
+                        .description("Maximum number of bytes of the response to print. Longer responses are printed " +
+                                "with their start and end and a marker for the part left out. Leave empty for no limit.")
+                        .required(false)
+                        .renderingOption(StringRenderingConstants.GROUP_NAME,"Print")
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .booleanType("streamResponse")
+                        .title("Stream Response?")
+                        .description("Print the response as it arrives, instead of once it has been read in full. " +
+                                "Use it for endpoints that report progress over a long running response. " +
+                                "JSON and XML responses are printed as sent, without pretty printing. " +
+                                "Max Printed Size then keeps only the start of the response.")
+                        .defaultValue("false")
+                        .renderingOption(StringRenderingConstants.GROUP_NAME,"Print")
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .integer("logFlushInterval")
+                        .title("Log Flush Interval")
+                        .description("Minimum time in milliseconds between log entries for a streamed response. " +
+                                "Lines arriving in between are logged together.")
+                        .defaultValue(String.valueOf(HttpBuilder.DEFAULT_LOG_FLUSH_INTERVAL))
+                        .required(false)
+                        .renderingOption(StringRenderingConstants.GROUP_NAME,"Print")
+                        .build())
                 .property(PropertyBuilder.builder()
                         .booleanType("printResponseToFile")
                         .title("Print Response to File?")
@@ -167,6 +335,50 @@ public class HttpDescription  implements Describable {
                         .defaultValue("false")
                         .scope(PropertyScope.Project)
                         .build())
-                .build();
+                .property(PropertyBuilder.builder()
+                        .integer("maxConnections")
+                        .title("Max Pooled Connections")
+                        .description("Maximum number of connections kept open across all hosts by the shared connection pool. " +
+                                "A pool shared by steps asking for different sizes uses the largest.")
+                        .defaultValue(HttpClientCache.DEFAULT_MAX_TOTAL.toString())
+                        .scope(PropertyScope.Project)
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .integer("maxConnectionsPerRoute")
+                        .title("Max Pooled Connections per Host")
+                        .description("Maximum number of connections kept open to a single host by the shared connection pool. " +
+                                "A pool shared by steps asking for different sizes uses the largest.")
+                        .defaultValue(HttpClientCache.DEFAULT_MAX_PER_ROUTE.toString())
+                        .scope(PropertyScope.Project)
+                        .build())
+                .property(PropertyBuilder.builder()
+                        .integer("connectionIdleTimeout")
+                        .title("Idle Connection Timeout")
+                        .description("Seconds after which idle pooled connections are closed. " +
+                                "A pool shared by steps asking for different timeouts uses the shortest.")
+                        .defaultValue(HttpClientCache.DEFAULT_IDLE_TIMEOUT.toString())
+                        .scope(PropertyScope.Project)
+                        .build());
+
+        if(workflowStep) {
+            // A node step already runs once per node on its own thread.
+            builder.property(PropertyBuilder.builder()
+                            .booleanType("nodeFanOut")
+                            .title("Send to Each Target Node?")
+                            .description("Send one request per node in the step's target nodes, rendering ${node.*} references " +
+                                    "in the URL and body for each node. Requests run concurrently and each node's result is reported.")
+                            .defaultValue("false")
+                            .renderingOption(StringRenderingConstants.GROUP_NAME,"Node Fan-out")
+                            .build())
+                    .property(PropertyBuilder.builder()
+                            .integer("fanOutParallelism")
+                            .title("Max Concurrent Requests")
+                            .description("Maximum number of node requests in flight at once.")
+                            .defaultValue(HttpWorkflowStepPlugin.DEFAULT_FAN_OUT_PARALLELISM.toString())
+                            .renderingOption(StringRenderingConstants.GROUP_NAME,"Node Fan-out")
+                            .build());
+        }
+
+        return builder.build();
     }
 }
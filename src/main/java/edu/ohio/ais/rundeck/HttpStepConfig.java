@@ -0,0 +1,556 @@
+package edu.ohio.ais.rundeck;
+
+import com.dtolabs.rundeck.core.execution.workflow.steps.StepException;
+import com.dtolabs.rundeck.core.execution.workflow.steps.StepFailureReason;
+import com.dtolabs.rundeck.plugins.PluginLogger;
+import edu.ohio.ais.rundeck.util.DataTemplate;
+import edu.ohio.ais.rundeck.util.HttpClientCache;
+import edu.ohio.ais.rundeck.util.LruCache;
+import edu.ohio.ais.rundeck.util.OAuthClient;
+import edu.ohio.ais.rundeck.util.ResponseCodeMatcher;
+import org.apache.http.Header;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static edu.ohio.ais.rundeck.HttpBuilder.getBooleanOption;
+import static edu.ohio.ais.rundeck.HttpBuilder.getStringOption;
+
+/**
+ * Immutable, pre-parsed step configuration.
+ *
+ * The raw option map is parsed and validated once per distinct step
+ * configuration and the result is shared by every node and every retry
+ * that uses the same options, so nothing is re-parsed on the request path.
+ *
+ * Secret options are left out of the configuration and of the cache key, so
+ * the static cache never holds them. Read them from the options of each
+ * execution instead, see {@link #getPassword(Map)}. The headers and body may
+ * hold credentials too, such as an Authorization header, so they are
+ * compiled for each execution on a copy of the cached configuration.
+ *
+ * Configuration warnings are kept with the configuration and logged by every
+ * execution, not only the one that compiled it.
+ */
+public final class HttpStepConfig implements Cloneable {
+
+    /**
+     * Compiled configurations indexed by the non-secret option values they
+     * were built from.
+     */
+    private static final LruCache<Map<String, Object>, HttpStepConfig> cache = new LruCache<>(256);
+
+    /**
+     * Options that hold secrets, or key storage paths to them.
+     */
+    static final Set<String> SECRET_OPTIONS = Collections.singleton("password");
+
+    /**
+     * Options holding the request headers and body, which may contain
+     * credentials. They are compiled for each execution and never cached.
+     */
+    static final Set<String> REQUEST_CONTENT_OPTIONS = new HashSet<>(Arrays.asList("headers", "body", "multipartParts"));
+
+    /**
+     * A configuration warning and its log level.
+     */
+    private static final class Warning {
+        final int level;
+        final String message;
+
+        Warning(int level, String message) {
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    private final String remoteUrl;
+    private final DataTemplate remoteUrlTemplate;
+    private final String method;
+    private final int timeout;
+    private String headers;
+    private Header[] parsedHeaders;
+    private String body;
+    private final String bodySource;
+    private DataTemplate bodyTemplate;
+    private final boolean multipartContentLength;
+    private final boolean acceptCompressed;
+    private final int compressRequestThreshold;
+    private final boolean expectContinue;
+    private final int expectContinueThreshold;
+    private final int expectContinueTimeout;
+
+    private final String authentication;
+    private final String username;
+    private final String oauthTokenEndpoint;
+    private final String oauthValidateEndpoint;
+    private final int oauthValidateTtl;
+    private final boolean oauthValidateAsync;
+    private final int oauthTimeout;
+
+    private final String responseCode;
+    private final ResponseCodeMatcher responseCodeMatcher;
+    private final boolean statusOnly;
+    private final int maxErrorBodySize;
+    private final boolean printResponse;
+    private final int maxLoggedSize;
+    private final boolean streamResponse;
+    private final int logFlushInterval;
+    private final boolean printResponseCode;
+    private final boolean printResponseToFile;
+    private final String file;
+
+    private final boolean sslVerify;
+    private final boolean proxySettings;
+    private final String proxyIP;
+    private final String proxyPort;
+    private final boolean useSystemProxySettings;
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final int connectionIdleTimeout;
+
+    private final boolean nodeFanOut;
+    private final int fanOutParallelism;
+
+    private final List<Warning> warnings = new ArrayList<>();
+
+    private HttpStepConfig(Map<String, Object> options) throws StepException {
+        remoteUrl = getStringOption(options, "remoteUrl");
+        remoteUrlTemplate = DataTemplate.compile(remoteUrl);
+        method = getStringOption(options, "method");
+        timeout = intOption(options, "timeout", HttpWorkflowStepPlugin.DEFAULT_TIMEOUT);
+        bodySource = getStringOption(options, "bodySource", HttpBuilder.BODY_TEXT);
+        setRequestContent(options);
+        multipartContentLength = getBooleanOption(options, "multipartContentLength", false);
+        acceptCompressed = getBooleanOption(options, "acceptCompressed", true);
+        compressRequestThreshold = intOption(options, "compressRequestThreshold", HttpBuilder.UNLIMITED);
+        expectContinue = getBooleanOption(options, "expectContinue", false);
+        expectContinueThreshold = intOption(options, "expectContinueThreshold", HttpBuilder.DEFAULT_EXPECT_CONTINUE_THRESHOLD);
+        expectContinueTimeout = intOption(options, "expectContinueTimeout", HttpClientCache.DEFAULT_WAIT_FOR_CONTINUE);
+
+        authentication = getStringOption(options, "authentication", HttpBuilder.AUTH_NONE);
+        username = getStringOption(options, "username");
+        oauthTokenEndpoint = getStringOption(options, "oauthTokenEndpoint");
+        oauthValidateEndpoint = getStringOption(options, "oauthValidateEndpoint");
+        oauthValidateTtl = intOption(options, "oauthValidateTtl", 0);
+        oauthValidateAsync = getBooleanOption(options, "oauthValidateAsync", false);
+        oauthTimeout = intOption(options, "oauthTimeout", OAuthClient.DEFAULT_TIMEOUT);
+
+        responseCode = getStringOption(options, "responseCode");
+        responseCodeMatcher = ResponseCodeMatcher.compile(responseCode);
+        for(String entry : responseCodeMatcher.getRejectedEntries()) {
+            warnings.add(new Warning(1, "Warning: Ignoring malformed responseCode entry: '" + entry + "'"));
+        }
+        statusOnly = getBooleanOption(options, "statusOnly", false);
+        // Status only checks leave the body out of failures unless asked for.
+        maxErrorBodySize = intOption(options, "maxErrorBodySize", statusOnly ? 0 : HttpBuilder.UNLIMITED);
+        printResponse = getBooleanOption(options, "printResponse", false);
+        maxLoggedSize = intOption(options, "maxLoggedSize", HttpBuilder.UNLIMITED);
+        streamResponse = getBooleanOption(options, "streamResponse", false);
+        logFlushInterval = intOption(options, "logFlushInterval", HttpBuilder.DEFAULT_LOG_FLUSH_INTERVAL);
+        printResponseCode = getBooleanOption(options, "printResponseCode", false);
+        printResponseToFile = getBooleanOption(options, "printResponseToFile", false);
+        file = getStringOption(options, "file");
+
+        sslVerify = getBooleanOption(options, "sslVerify", true);
+        proxySettings = getBooleanOption(options, "proxySettings", false);
+        proxyIP = getStringOption(options, "proxyIP", "");
+        proxyPort = getStringOption(options, "proxyPort", "");
+        useSystemProxySettings = getBooleanOption(options, "useSystemProxySettings", false);
+        maxConnections = intOption(options, "maxConnections", HttpClientCache.DEFAULT_MAX_TOTAL);
+        maxConnectionsPerRoute = intOption(options, "maxConnectionsPerRoute", HttpClientCache.DEFAULT_MAX_PER_ROUTE);
+        connectionIdleTimeout = intOption(options, "connectionIdleTimeout", HttpClientCache.DEFAULT_IDLE_TIMEOUT);
+
+        nodeFanOut = getBooleanOption(options, "nodeFanOut", false);
+        fanOutParallelism = intOption(options, "fanOutParallelism", HttpWorkflowStepPlugin.DEFAULT_FAN_OUT_PARALLELISM);
+
+        if(printResponseToFile && file == null) {
+            throw new StepException("A file path is required to print the response to a file.", StepFailureReason.ConfigurationFailure);
+        }
+        if(statusOnly && printResponseToFile) {
+            throw new StepException("The response can't be printed to a file when checking the status only, " +
+                    "the response body is never downloaded.", StepFailureReason.ConfigurationFailure);
+        }
+
+        if(statusOnly) {
+            if(printResponse) {
+                warnings.add(new Warning(1, "Warning: The response is not printed when checking the status only."));
+            }
+            if(options.get("maxErrorBodySize") == null) {
+                warnings.add(new Warning(3, "Checking the status only, failure messages leave out the response body " +
+                        "unless maxErrorBodySize is set."));
+            }
+        }
+    }
+
+    /**
+     * Compile the headers and body from the options.
+     */
+    private void setRequestContent(Map<String, Object> options) {
+        headers = getStringOption(options, "headers");
+        parsedHeaders = HttpBuilder.compileHeaders(headers);
+        body = getStringOption(options, "body");
+        if(HttpBuilder.BODY_FILE.equals(bodySource)) {
+            bodyTemplate = DataTemplate.compile(getStringOption(options, "bodyFile"));
+        } else if(HttpBuilder.BODY_KEY_STORAGE.equals(bodySource)) {
+            bodyTemplate = DataTemplate.compile(getStringOption(options, "bodyStoragePath"));
+        } else if(HttpBuilder.BODY_MULTIPART.equals(bodySource)) {
+            bodyTemplate = DataTemplate.compile(getStringOption(options, "multipartParts"));
+        } else {
+            bodyTemplate = DataTemplate.compile(body);
+        }
+    }
+
+    /**
+     * @return This configuration with the headers and body of the options,
+     *         a copy if the options have any
+     */
+    private HttpStepConfig withRequestContent(Map<String, Object> options) {
+        if(Collections.disjoint(options.keySet(), REQUEST_CONTENT_OPTIONS)) {
+            return this;
+        }
+
+        HttpStepConfig config;
+        try {
+            config = (HttpStepConfig) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        config.setRequestContent(options);
+        return config;
+    }
+
+    /**
+     * Log the configuration warnings.
+     *
+     * @param log Logger of the execution
+     */
+    public void logWarnings(PluginLogger log) {
+        for(Warning warning : warnings) {
+            log.log(warning.level, warning.message);
+        }
+    }
+
+    /**
+     * Get the compiled configuration for the given options, compiling it on
+     * first use.
+     *
+     * @param options All of the options provided to the plugin execution
+     * @return The compiled configuration
+     * @throws StepException If an option has an invalid value
+     */
+    public static HttpStepConfig of(Map<String, Object> options) throws StepException {
+        return of(options, null);
+    }
+
+    /**
+     * Get the compiled configuration for the given options, compiling it on
+     * first use. Configuration warnings are logged on every call.
+     *
+     * @param options All of the options provided to the plugin execution
+     * @param log Logger for configuration warnings, may be null
+     * @return The compiled configuration
+     * @throws StepException If an option has an invalid value
+     */
+    public static HttpStepConfig of(Map<String, Object> options, PluginLogger log) throws StepException {
+        Map<String, Object> settings = withoutUncached(options);
+        HttpStepConfig config = cache.get(settings);
+
+        if(config == null) {
+            Map<String, Object> key = settings == options ? new HashMap<>(options) : settings;
+            config = new HttpStepConfig(key);
+            cache.put(key, config);
+        }
+
+        if(log != null) {
+            config.logWarnings(log);
+        }
+
+        return config.withRequestContent(options);
+    }
+
+    /**
+     * @return The options without {@link #SECRET_OPTIONS} and
+     *         {@link #REQUEST_CONTENT_OPTIONS}, or the same map if it has
+     *         none of them
+     */
+    private static Map<String, Object> withoutUncached(Map<String, Object> options) {
+        if(Collections.disjoint(options.keySet(), SECRET_OPTIONS) && Collections.disjoint(options.keySet(), REQUEST_CONTENT_OPTIONS)) {
+            return options;
+        }
+
+        Map<String, Object> settings = new HashMap<>(options);
+        settings.keySet().removeAll(SECRET_OPTIONS);
+        settings.keySet().removeAll(REQUEST_CONTENT_OPTIONS);
+        return settings;
+    }
+
+    /**
+     * The password option is a secret, so it isn't part of the compiled
+     * configuration.
+     *
+     * @param options All of the options provided to the plugin execution
+     * @return The password, or key storage path to it, or null if not set
+     */
+    public static String getPassword(Map<String, Object> options) {
+        return getStringOption(options, "password");
+    }
+
+    private static int intOption(Map<String, Object> options, String key, Integer defValue) throws StepException {
+        try {
+            return HttpBuilder.getIntOption(options, key, defValue);
+        } catch (NumberFormatException e) {
+            throw new StepException("Invalid number for " + key + ": " + options.get(key), StepFailureReason.ConfigurationFailure);
+        }
+    }
+
+    public String getRemoteUrl() {
+        return remoteUrl;
+    }
+
+    /**
+     * @return The compiled remoteUrl, or null if it is not set
+     */
+    public DataTemplate getRemoteUrlTemplate() {
+        return remoteUrlTemplate;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public String getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return Headers parsed from the headers option, or null if there are no
+     *         headers or they could not be parsed.
+     */
+    public Header[] getParsedHeaders() {
+        return parsedHeaders;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return Where the body comes from: {@link HttpBuilder#BODY_TEXT},
+     *         {@link HttpBuilder#BODY_FILE}, {@link HttpBuilder#BODY_KEY_STORAGE}
+     *         or {@link HttpBuilder#BODY_MULTIPART}
+     */
+    public String getBodySource() {
+        return bodySource;
+    }
+
+    /**
+     * @return The compiled body text, or the compiled file path, key storage
+     *         path or multipart parts for those body sources. Null if it is
+     *         not set.
+     */
+    public DataTemplate getBodyTemplate() {
+        return bodyTemplate;
+    }
+
+    /**
+     * @return True if each multipart part is sent with its Content-Length.
+     */
+    public boolean isMultipartContentLength() {
+        return multipartContentLength;
+    }
+
+    /**
+     * @return True, the default, if gzip and deflate responses are accepted
+     *         and decompressed as they are read. False to opt out.
+     */
+    public boolean isAcceptCompressed() {
+        return acceptCompressed;
+    }
+
+    /**
+     * @return Smallest request body, in bytes, that is sent gzip compressed,
+     *         or {@link HttpBuilder#UNLIMITED} to never compress.
+     */
+    public int getCompressRequestThreshold() {
+        return compressRequestThreshold;
+    }
+
+    /**
+     * @return True if large bodies wait for a 100 Continue response before
+     *         being sent.
+     */
+    public boolean isExpectContinue() {
+        return expectContinue;
+    }
+
+    /**
+     * @return Smallest request body, in bytes, that waits for 100 Continue.
+     */
+    public int getExpectContinueThreshold() {
+        return expectContinueThreshold;
+    }
+
+    /**
+     * @return Milliseconds to wait for 100 Continue before sending the body
+     *         anyway.
+     */
+    public int getExpectContinueTimeout() {
+        return expectContinueTimeout;
+    }
+
+    public String getAuthentication() {
+        return authentication;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getOauthTokenEndpoint() {
+        return oauthTokenEndpoint;
+    }
+
+    public String getOauthValidateEndpoint() {
+        return oauthValidateEndpoint;
+    }
+
+    /**
+     * @return Seconds a successful token validation is trusted for, or 0 to
+     *         trust it for as long as the token is used.
+     */
+    public int getOauthValidateTtl() {
+        return oauthValidateTtl;
+    }
+
+    /**
+     * @return True if new tokens are validated in the background while the
+     *         request that needed them is sent.
+     */
+    public boolean isOauthValidateAsync() {
+        return oauthValidateAsync;
+    }
+
+    /**
+     * @return Milliseconds to wait for the token and validate endpoints.
+     */
+    public int getOauthTimeout() {
+        return oauthTimeout;
+    }
+
+    public String getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * @return The compiled responseCode expression
+     */
+    public ResponseCodeMatcher getResponseCodeMatcher() {
+        return responseCodeMatcher;
+    }
+
+    /**
+     * @return True if the body is never downloaded, and only the status
+     *         decides the outcome.
+     */
+    public boolean isStatusOnly() {
+        return statusOnly;
+    }
+
+    /**
+     * @return Maximum number of body bytes included in failure messages, or
+     *         {@link HttpBuilder#UNLIMITED}.
+     */
+    public int getMaxErrorBodySize() {
+        return maxErrorBodySize;
+    }
+
+    public boolean isPrintResponse() {
+        return printResponse;
+    }
+
+    /**
+     * @return Maximum number of bytes of the response to print, or
+     *         {@link HttpBuilder#UNLIMITED}.
+     */
+    public int getMaxLoggedSize() {
+        return maxLoggedSize;
+    }
+
+    /**
+     * @return True if the response is printed as it arrives, instead of once
+     *         it has been read in full.
+     */
+    public boolean isStreamResponse() {
+        return streamResponse;
+    }
+
+    /**
+     * @return Minimum milliseconds between log calls for a streamed response.
+     */
+    public int getLogFlushInterval() {
+        return logFlushInterval;
+    }
+
+    public boolean isPrintResponseCode() {
+        return printResponseCode;
+    }
+
+    public boolean isPrintResponseToFile() {
+        return printResponseToFile;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public boolean isSslVerify() {
+        return sslVerify;
+    }
+
+    public boolean isProxySettings() {
+        return proxySettings;
+    }
+
+    public String getProxyIP() {
+        return proxyIP;
+    }
+
+    public String getProxyPort() {
+        return proxyPort;
+    }
+
+    public boolean isUseSystemProxySettings() {
+        return useSystemProxySettings;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public int getConnectionIdleTimeout() {
+        return connectionIdleTimeout;
+    }
+
+    public boolean isNodeFanOut() {
+        return nodeFanOut;
+    }
+
+    public int getFanOutParallelism() {
+        return fanOutParallelism;
+    }
+}
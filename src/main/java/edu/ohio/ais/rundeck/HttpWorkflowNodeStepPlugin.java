@@ -20,18 +20,15 @@ import com.dtolabs.rundeck.plugins.step.NodeStepPlugin;
 import com.dtolabs.rundeck.plugins.step.PluginStepContext;
 import com.dtolabs.rundeck.plugins.util.DescriptionBuilder;
 import edu.ohio.ais.rundeck.util.OAuthClient;
+import edu.ohio.ais.rundeck.util.OAuthClientRegistry;
 import edu.ohio.ais.rundeck.util.SecretBundleUtil;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.entity.ByteArrayEntity;
 
-import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.function.UnaryOperator;
 
-import static edu.ohio.ais.rundeck.HttpBuilder.propertyResolver;
-import static edu.ohio.ais.rundeck.HttpBuilder.getIntOption;
-import static edu.ohio.ais.rundeck.HttpBuilder.getStringOption;
 
 @Plugin(name = HttpWorkflowNodeStepPlugin.SERVICE_PROVIDER_NAME, service = ServiceNameConstants.WorkflowNodeStep)
 public class HttpWorkflowNodeStepPlugin implements NodeStepPlugin, Describable, ProxySecretBundleCreator {
@@ -49,15 +46,22 @@ public class HttpWorkflowNodeStepPlugin implements NodeStepPlugin, Describable,
     public static final Integer DEFAULT_TIMEOUT = 30*1000;
 
     /**
-     * Synchronized map of all existing OAuth clients. This is indexed by
-     * the Client ID and the token URL so that we can store and re-use access tokens.
+     * Concurrent map of all existing OAuth clients. This is the process-wide
+     * {@link OAuthClientRegistry}, shared by every instance of both plugins,
+     * so steps with the same credentials re-use one access token.
      */
-    final Map<String, OAuthClient> oauthClients = Collections.synchronizedMap(new HashMap<String, OAuthClient>());
+    final Map<String, OAuthClient> oauthClients = OAuthClientRegistry.getClients();
+
+    /**
+     * The plugin description never changes, so build it once.
+     */
+    private static final Description DESCRIPTION = new HttpDescription(SERVICE_PROVIDER_NAME, "HTTP Request Node Step",
+            "Performs an HTTP request with or without authentication (per node)").getDescription();
 
 
     @Override
     public Description getDescription() {
-        return new HttpDescription(SERVICE_PROVIDER_NAME, "HTTP Request Node Step", "Performs an HTTP request with or without authentication (per node)").getDescription();
+        return DESCRIPTION;
     }
 
 
@@ -65,42 +69,46 @@ public class HttpWorkflowNodeStepPlugin implements NodeStepPlugin, Describable,
     public void executeNodeStep(PluginStepContext context, Map<String, Object> configuration, INodeEntry entry) throws NodeStepException {
         PluginLogger log = context.getLogger();
 
-        Description description = new HttpDescription(SERVICE_PROVIDER_NAME, "HTTP Request Node Step", "Performs an HTTP request with or without authentication (per node)").getDescription();
-        description.getProperties().forEach(prop->
-            propertyResolver("WorkflowNodeStep", prop.getName(), configuration, context, SERVICE_PROVIDER_NAME)
-        );
+        PropertyDefaults.apply("WorkflowNodeStep", SERVICE_PROVIDER_NAME, DESCRIPTION, configuration, context);
 
         // Parse out the options
-        String remoteUrl = getStringOption(configuration, "remoteUrl");
-        String method = getStringOption(configuration, "method");
-        Integer timeout =getIntOption(configuration,"timeout", DEFAULT_TIMEOUT);
-        String headers = getStringOption(configuration, "headers");
-        String body = getStringOption(configuration, "body");
+        HttpStepConfig config;
+        try {
+            config = HttpStepConfig.of(configuration, log);
+        } catch (StepException e) {
+            throw new NodeStepException(e.getMessage(), e.getFailureReason(), entry.getNodename());
+        }
+
+        String remoteUrl = config.getRemoteUrl();
+        String method = config.getMethod();
+        Integer timeout = config.getTimeout();
 
         log.log(5, "remoteUrl: " + remoteUrl);
         log.log(5, "method: " + method);
-        log.log(5, "headers: " + headers);
+        log.log(5, "headers: " + config.getHeaders());
         log.log(5, "timeout: " + timeout);
 
         if(remoteUrl == null || method == null) {
             throw new NodeStepException("Remote URL and Method are required.", StepFailureReason.ConfigurationFailure, entry.getNodename());
         }
 
-        //Use options in remote URL
-        if (null != remoteUrl && remoteUrl.contains("${")) {
-            remoteUrl = DataContextUtils.replaceDataReferencesInString(remoteUrl, context.getDataContextObject());
-        }
+        //Use options in remote URL and body
+        UnaryOperator<String> renderer = template -> DataContextUtils.replaceDataReferencesInString(template, context.getDataContextObject());
 
-        //Use options in body
-        if (null != body && body.contains("${")) {
-            body = DataContextUtils.replaceDataReferencesInString(body, context.getDataContextObject());
-        }
+        remoteUrl = config.getRemoteUrlTemplate().render(renderer);
 
         HttpBuilder builder = new HttpBuilder();
         builder.setLog(log);
         builder.setMaxAttempts(MAX_ATTEMPTS);
         builder.setOauthClients(oauthClients);
 
+        HttpEntity body;
+        try {
+            body = builder.createBody(context, config, renderer);
+        } catch (StepException e) {
+            throw new NodeStepException(e.getMessage(), e.getFailureReason(), entry.getNodename());
+        }
+
         // Setup the request and process it.
         RequestBuilder request = RequestBuilder.create(method)
                 .setUri(remoteUrl)
@@ -114,7 +122,7 @@ public class HttpWorkflowNodeStepPlugin implements NodeStepPlugin, Describable,
 
         String authHeader = null;
         try {
-            authHeader = builder.getAuthHeader(context, configuration);
+            authHeader = builder.getAuthHeader(context, config, HttpStepConfig.getPassword(configuration));
         } catch (StepException e) {
             throw new NodeStepException(e.getMessage(), e.getFailureReason(), entry.getNodename());
         }
@@ -125,37 +133,41 @@ public class HttpWorkflowNodeStepPlugin implements NodeStepPlugin, Describable,
         }
 
         //add custom headers, it could be json or yml
-        if(headers !=null){
-            builder.setHeaders(headers, request);
+        if(config.getHeaders() !=null){
+            builder.setHeaders(config, request);
         }
 
-        //send body
+        //send body, file and key storage bodies are streamed
         if(body !=null){
-            HttpEntity entity = null;
-            try {
-                entity = new ByteArrayEntity(body.getBytes("UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
-            request.setEntity(entity);
+            request.setEntity(body);
         }
 
         try {
-            builder.doRequest(configuration, request.build(), 1);
+            builder.doRequest(config, request.build(), 1);
         } catch (StepException e) {
             throw new NodeStepException(e.getMessage(), e.getFailureReason(), entry.getNodename());
         }
 
     }
 
+    /**
+     * Render data references in the configuration the same way the step
+     * does for the node, for the key storage paths in the secret bundle.
+     */
+    private static UnaryOperator<String> renderer(ExecutionContext context, INodeEntry node) {
+        final Map<String, Map<String, String>> dataContext = DataContextUtils.addContext("node",
+                DataContextUtils.nodeData(node), context.getDataContext());
+        return template -> DataContextUtils.replaceDataReferences(template, dataContext);
+    }
+
     @Override
     public SecretBundle prepareSecretBundleWorkflowNodeStep(ExecutionContext context, INodeEntry node, Map<String, Object> configuration) {
-        return SecretBundleUtil.getSecrets(context, configuration);
+        return SecretBundleUtil.getSecrets(context, configuration, renderer(context, node));
     }
 
     @Override
     public List<String> listSecretsPathWorkflowNodeStep(ExecutionContext context, INodeEntry node, Map<String, Object> configuration) {
-        return SecretBundleUtil.getListSecrets(configuration);
+        return SecretBundleUtil.getListSecrets(configuration, renderer(context, node));
     }
 
 }
@@ -1,5 +1,7 @@
 package edu.ohio.ais.rundeck;
 
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.INodeSet;
 import com.dtolabs.rundeck.core.dispatcher.DataContextUtils;
 import com.dtolabs.rundeck.core.execution.ExecutionContext;
 import com.dtolabs.rundeck.core.execution.proxy.ProxySecretBundleCreator;
@@ -13,19 +15,20 @@ import com.dtolabs.rundeck.plugins.PluginLogger;
 import com.dtolabs.rundeck.plugins.ServiceNameConstants;
 import com.dtolabs.rundeck.plugins.step.PluginStepContext;
 import com.dtolabs.rundeck.plugins.step.StepPlugin;
+import edu.ohio.ais.rundeck.util.DataTemplate;
 import edu.ohio.ais.rundeck.util.OAuthClient;
+import edu.ohio.ais.rundeck.util.OAuthClientRegistry;
+import edu.ohio.ais.rundeck.util.QueuedLogger;
 import edu.ohio.ais.rundeck.util.SecretBundleUtil;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.entity.ByteArrayEntity;
 
-import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.UnaryOperator;
 
-import static edu.ohio.ais.rundeck.HttpBuilder.propertyResolver;
-import static edu.ohio.ais.rundeck.HttpBuilder.getIntOption;
-import static edu.ohio.ais.rundeck.HttpBuilder.getStringOption;
 
 
 /**
@@ -46,14 +49,26 @@ public class HttpWorkflowStepPlugin implements StepPlugin, Describable, ProxySec
      */
     public static final Integer DEFAULT_TIMEOUT = 30*1000;
 
+    /**
+     * Default number of concurrent requests when sending to each target node.
+     */
+    public static final Integer DEFAULT_FAN_OUT_PARALLELISM = 10;
+
     public static final String SERVICE_PROVIDER_NAME = "edu.ohio.ais.rundeck.HttpWorkflowStepPlugin";
 
 
     /**
-     * Synchronized map of all existing OAuth clients. This is indexed by
-     * the Client ID and the token URL so that we can store and re-use access tokens.
+     * Concurrent map of all existing OAuth clients. This is the process-wide
+     * {@link OAuthClientRegistry}, shared by every instance of both plugins,
+     * so steps with the same credentials re-use one access token.
+     */
+    final Map<String, OAuthClient> oauthClients = OAuthClientRegistry.getClients();
+
+    /**
+     * The plugin description never changes, so build it once.
      */
-    final Map<String, OAuthClient> oauthClients = Collections.synchronizedMap(new HashMap<String, OAuthClient>());
+    private static final Description DESCRIPTION = new HttpDescription(SERVICE_PROVIDER_NAME, "HTTP Request Step",
+            "Performs an HTTP request with or without authentication", true).getDescription();
 
 
     /**
@@ -66,44 +81,183 @@ public class HttpWorkflowStepPlugin implements StepPlugin, Describable, ProxySec
      */
     @Override
     public Description getDescription() {
-        return new HttpDescription(SERVICE_PROVIDER_NAME, "HTTP Request Step", "Performs an HTTP request with or without authentication").getDescription();
+        return DESCRIPTION;
     }
 
     @Override
     public void executeStep(PluginStepContext pluginStepContext, Map<String, Object> options) throws StepException {
         PluginLogger log = pluginStepContext.getLogger();
 
-        Description description = new HttpDescription(SERVICE_PROVIDER_NAME, "HTTP Request Node Step", "Performs an HTTP request with or without authentication (per node)").getDescription();
-        description.getProperties().forEach(prop->
-                propertyResolver("WorkflowStep",prop.getName(), options, pluginStepContext, SERVICE_PROVIDER_NAME)
-        );
+        PropertyDefaults.apply("WorkflowStep", SERVICE_PROVIDER_NAME, DESCRIPTION, options, pluginStepContext);
 
         // Parse out the options
-        String remoteUrl = getStringOption(options, "remoteUrl");
-        String method = getStringOption(options, "method");
-        Integer timeout =getIntOption(options,"timeout", DEFAULT_TIMEOUT);
-        String headers = getStringOption(options, "headers");
-        String body = getStringOption(options, "body");
+        HttpStepConfig config = HttpStepConfig.of(options, log);
+        String method = config.getMethod();
+        Integer timeout = config.getTimeout();
 
-        if(remoteUrl == null || method == null) {
+        if(config.getRemoteUrl() == null || method == null) {
             throw new StepException("Remote URL and Method are required.", StepFailureReason.ConfigurationFailure);
         }
 
-        //Use options in remote URL
-        if (null != remoteUrl && remoteUrl.contains("${")) {
-            remoteUrl = DataContextUtils.replaceDataReferences(remoteUrl, pluginStepContext.getDataContext());
-        }
-
-        //Use options in body
-        if (null != body && body.contains("${")) {
-            body = DataContextUtils.replaceDataReferences(body, pluginStepContext.getDataContext());
-        }
-
         HttpBuilder builder = new HttpBuilder();
         builder.setLog(log);
         builder.setMaxAttempts(MAX_ATTEMPTS);
         builder.setOauthClients(oauthClients);
 
+        String authHeader = builder.getAuthHeader(pluginStepContext, config, HttpStepConfig.getPassword(options));
+
+        if(config.isNodeFanOut()) {
+            executeForNodes(pluginStepContext, config, builder, method, timeout, authHeader);
+            return;
+        }
+
+        //Use options in remote URL and body
+        final Map<String, Map<String, String>> dataContext = pluginStepContext.getDataContext();
+        UnaryOperator<String> renderer = template -> DataContextUtils.replaceDataReferences(template, dataContext);
+
+        String remoteUrl = config.getRemoteUrlTemplate().render(renderer);
+        HttpEntity body = builder.createBody(pluginStepContext, config, renderer);
+
+        RequestBuilder request = buildRequest(builder, config, remoteUrl, method, timeout, body, authHeader);
+
+        builder.doRequest(config, request.build(), 1);
+    }
+
+    /**
+     * Send one request per target node, rendering the URL and body with each
+     * node's data. Requests run concurrently on the shared request pool,
+     * bounded by the fanOutParallelism option, and share the compiled
+     * configuration, authentication
+     * header and pooled client. A URL or body that doesn't reference node
+     * data is rendered once and shared by every node. Every node's result is
+     * logged and the step fails if any node failed. If preparing a node's
+     * request fails, requests already sent are cancelled and waited for, and
+     * their results logged, before the failure is thrown.
+     */
+    void executeForNodes(PluginStepContext pluginStepContext, HttpStepConfig config, HttpBuilder builder,
+                         String method, Integer timeout, String authHeader) throws StepException {
+        PluginLogger log = pluginStepContext.getLogger();
+        INodeSet nodeSet = pluginStepContext.getNodes();
+
+        if(nodeSet == null || nodeSet.getNodes().isEmpty()) {
+            throw new StepException("No target nodes to send requests to.", StepFailureReason.ConfigurationFailure);
+        }
+
+        List<INodeEntry> nodes = new ArrayList<>(nodeSet.getNodes());
+        int parallelism = Math.max(1, config.getFanOutParallelism());
+        final Semaphore permits = new Semaphore(parallelism);
+
+        log.log(3, "Sending requests to " + nodes.size() + " nodes with at most " + parallelism + " in flight");
+
+        final Map<String, Map<String, String>> dataContext = pluginStepContext.getDataContext();
+        UnaryOperator<String> stepRenderer = template -> DataContextUtils.replaceDataReferences(template, dataContext);
+
+        DataTemplate urlTemplate = config.getRemoteUrlTemplate();
+        DataTemplate bodyTemplate = config.getBodyTemplate();
+        String sharedUrl = urlTemplate.isNodeDependent() ? null : urlTemplate.render(stepRenderer);
+        HttpEntity sharedBody = bodyTemplate == null || bodyTemplate.isNodeDependent() ? null
+                : builder.createBody(pluginStepContext, config, stepRenderer);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>(nodes.size());
+        List<QueuedLogger> nodeLogs = new ArrayList<>(nodes.size());
+
+        try {
+            for(INodeEntry node : nodes) {
+                String nodeUrl = sharedUrl;
+                HttpEntity nodeBody = sharedBody;
+
+                if(nodeUrl == null || (nodeBody == null && bodyTemplate != null)) {
+                    final Map<String, Map<String, String>> nodeContext = DataContextUtils.addContext("node",
+                            DataContextUtils.nodeData(node), dataContext);
+                    UnaryOperator<String> nodeRenderer = template -> DataContextUtils.replaceDataReferences(template, nodeContext);
+
+                    if(nodeUrl == null) {
+                        nodeUrl = urlTemplate.render(nodeRenderer);
+                    }
+                    if(nodeBody == null && bodyTemplate != null) {
+                        nodeBody = builder.createBody(pluginStepContext, config, nodeRenderer);
+                    }
+                }
+
+                RequestBuilder request = buildRequest(builder, config, nodeUrl, method, timeout, nodeBody, authHeader);
+                QueuedLogger nodeLog = new QueuedLogger();
+
+                // The permit is only returned once the pool is done with the
+                // request, so holding every permit means nothing is in flight.
+                permits.acquire();
+                CompletableFuture<Void> future = builder.doRequestAsync(config, request.build(), nodeLog, permits::release);
+
+                futures.add(future);
+                nodeLogs.add(nodeLog);
+            }
+        } catch (InterruptedException e) {
+            cancelNodes(log, nodes, futures, nodeLogs, permits, parallelism);
+            Thread.currentThread().interrupt();
+            throw new StepException("Request was interrupted.", StepFailureReason.Interrupted);
+        } catch (StepException | RuntimeException e) {
+            cancelNodes(log, nodes, futures, nodeLogs, permits, parallelism);
+            throw e;
+        }
+
+        List<String> failedNodes = new ArrayList<>();
+
+        for(int i = 0; i < futures.size(); i++) {
+            String nodename = nodes.get(i).getNodename();
+
+            try {
+                builder.awaitRequest(futures.get(i), nodeLogs.get(i));
+                log.log(2, nodename + ": OK");
+            } catch (StepException se) {
+                if(se.getFailureReason() == StepFailureReason.Interrupted) {
+                    cancelNodes(log, nodes.subList(i + 1, futures.size()), futures.subList(i + 1, futures.size()),
+                            nodeLogs.subList(i + 1, futures.size()), permits, parallelism);
+                    throw se;
+                }
+                log.log(0, nodename + ": FAILED: " + se.getMessage());
+                failedNodes.add(nodename);
+            }
+        }
+
+        if(!failedNodes.isEmpty()) {
+            throw new StepException("HTTP request failed on " + failedNodes.size() + " of " + nodes.size()
+                    + " nodes: " + String.join(", ", failedNodes), HttpBuilder.Reason.HTTPFailure);
+        }
+    }
+
+    /**
+     * Cancel node requests that haven't finished, wait until the pool is
+     * done with all of them, and log each node's output and result.
+     */
+    private void cancelNodes(PluginLogger log, List<INodeEntry> nodes, List<CompletableFuture<Void>> futures,
+                             List<QueuedLogger> nodeLogs, Semaphore permits, int parallelism) {
+        for(CompletableFuture<Void> future : futures) {
+            future.cancel(true);
+        }
+
+        // Aborted requests finish quickly, wait for them even if interrupted.
+        permits.acquireUninterruptibly(parallelism);
+        permits.release(parallelism);
+
+        for(int i = 0; i < futures.size(); i++) {
+            String nodename = nodes.get(i).getNodename();
+            CompletableFuture<Void> future = futures.get(i);
+            nodeLogs.get(i).drainTo(log);
+
+            if(future.isCancelled()) {
+                log.log(1, nodename + ": CANCELLED");
+            } else if(future.isCompletedExceptionally()) {
+                Throwable error = future.handle((result, e) -> e).join();
+                log.log(0, nodename + ": FAILED: " + error.getMessage());
+            } else {
+                log.log(2, nodename + ": OK");
+            }
+        }
+    }
+
+    private RequestBuilder buildRequest(HttpBuilder builder, HttpStepConfig config, String remoteUrl, String method,
+                                        Integer timeout, HttpEntity body, String authHeader) {
+        PluginLogger log = builder.getLog();
+
         // Setup the request and process it.
         RequestBuilder request = RequestBuilder.create(method)
                 .setUri(remoteUrl)
@@ -115,40 +269,41 @@ public class HttpWorkflowStepPlugin implements StepPlugin, Describable, ProxySec
 
         log.log(5,"Creating HTTP " + request.getMethod() + " request to " + request.getUri());
 
-        String authHeader = builder.getAuthHeader(pluginStepContext, options);
-
         if(authHeader != null) {
             log.log(5,"Authentication header set to " + authHeader);
             request.setHeader("Authorization", authHeader);
         }
 
         //add custom headers, it could be json or yml
-        if(headers !=null){
-            builder.setHeaders(headers, request);
+        if(config.getHeaders() !=null){
+            builder.setHeaders(config, request);
         }
 
-        //send body
+        //send body, it is repeatable and may be shared between requests
         if(body !=null){
-            HttpEntity entity = null;
-            try {
-                entity = new ByteArrayEntity(body.getBytes("UTF-8"));
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
-            request.setEntity(entity);
+            request.setEntity(body);
         }
 
-        builder.doRequest(options, request.build(), 1);
+        return request;
+    }
+
+    /**
+     * Render data references in the configuration the same way the step
+     * does, for the key storage paths in the secret bundle.
+     */
+    private static UnaryOperator<String> renderer(ExecutionContext context) {
+        final Map<String, Map<String, String>> dataContext = context.getDataContext();
+        return template -> DataContextUtils.replaceDataReferences(template, dataContext);
     }
 
     @Override
     public SecretBundle prepareSecretBundleWorkflowStep(ExecutionContext context, Map<String, Object> configuration) {
-        return SecretBundleUtil.getSecrets(context, configuration);
+        return SecretBundleUtil.getSecrets(context, configuration, renderer(context));
     }
 
     @Override
     public List<String> listSecretsPathWorkflowStep(ExecutionContext context, Map<String, Object> configuration) {
-        return SecretBundleUtil.getListSecrets(configuration);
+        return SecretBundleUtil.getListSecrets(configuration, renderer(context));
     }
 
 }
@@ -0,0 +1,115 @@
+package edu.ohio.ais.rundeck;
+
+import com.dtolabs.rundeck.core.common.IRundeckProject;
+import com.dtolabs.rundeck.core.plugins.configuration.Description;
+import com.dtolabs.rundeck.core.plugins.configuration.Property;
+import com.dtolabs.rundeck.core.utils.IPropertyLookup;
+import com.dtolabs.rundeck.plugins.step.PluginStepContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Snapshot of the project level defaults for a plugin's properties, resolved
+ * once and reused by every step and node of a project.
+ *
+ * A snapshot is rebuilt when the project configuration's last modified time
+ * changes. Projects that don't report a modified time are resolved on every
+ * call, but still with a single project property fetch. Framework level
+ * defaults have no modified time, so the properties the project doesn't
+ * define are looked up in the framework properties on every call.
+ */
+final class PropertyDefaults {
+
+    private static final Map<String, PropertyDefaults> snapshots = new ConcurrentHashMap<>();
+
+    private final Date projectModified;
+
+    /**
+     * Project level defaults by property name.
+     */
+    private final Map<String, String> values;
+
+    /**
+     * Names of the properties the project doesn't define.
+     */
+    private final List<String> inherited;
+
+    private PropertyDefaults(Date projectModified, Map<String, String> values, List<String> inherited) {
+        this.projectModified = projectModified;
+        this.values = values;
+        this.inherited = inherited;
+    }
+
+    /**
+     * Fill in any property missing from the configuration with its project
+     * level default, or its framework level default when the project doesn't
+     * define one.
+     *
+     * @param pluginType Plugin service type, e.g. WorkflowStep
+     * @param serviceName Provider name of the plugin
+     * @param description Description listing the plugin's properties
+     * @param configuration Step configuration, updated in place
+     * @param context The step context
+     */
+    static void apply(String pluginType, String serviceName, Description description,
+                      Map<String, Object> configuration, PluginStepContext context) {
+        String projectName = context.getFrameworkProject();
+        IRundeckProject project = context.getFramework().getFrameworkProjectMgr().getFrameworkProject(projectName);
+        Date modified = project.getConfigLastModifiedTime();
+        String key = pluginType + ":" + serviceName + ":" + projectName;
+
+        PropertyDefaults defaults = snapshots.get(key);
+
+        if(defaults == null || modified == null || !modified.equals(defaults.projectModified)) {
+            defaults = resolve(pluginType, serviceName, description, project, modified);
+
+            if(modified != null) {
+                snapshots.put(key, defaults);
+            }
+        }
+
+        for(Map.Entry<String, String> entry : defaults.values.entrySet()) {
+            if(!configuration.containsKey(entry.getKey())) {
+                configuration.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if(!defaults.inherited.isEmpty()) {
+            IPropertyLookup frameworkProperties = context.getFramework().getPropertyLookup();
+            String frameworkPrefix = "framework.plugin." + pluginType + "." + serviceName + ".";
+
+            for(String name : defaults.inherited) {
+                if(!configuration.containsKey(name) && frameworkProperties.hasProperty(frameworkPrefix + name)) {
+                    configuration.put(name, frameworkProperties.getProperty(frameworkPrefix + name));
+                }
+            }
+        }
+    }
+
+    private static PropertyDefaults resolve(String pluginType, String serviceName, Description description,
+                                            IRundeckProject project, Date modified) {
+        String projectPrefix = "project.plugin." + pluginType + "." + serviceName + ".";
+
+        Map<String, String> projectProperties = project.getProperties();
+        Map<String, String> values = new HashMap<>();
+        List<String> inherited = new ArrayList<>();
+
+        for(Property property : description.getProperties()) {
+            String name = property.getName();
+
+            if(projectProperties.containsKey(projectPrefix + name)) {
+                values.put(name, projectProperties.get(projectPrefix + name));
+            } else {
+                inherited.add(name);
+            }
+        }
+
+        return new PropertyDefaults(modified, Collections.unmodifiableMap(values), Collections.unmodifiableList(inherited));
+    }
+}
@@ -0,0 +1,249 @@
+package edu.ohio.ais.rundeck;
+
+import edu.ohio.ais.rundeck.util.SpoolBuffer;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The body of a response, read from the connection at most once.
+ *
+ * A body with a single consumer is streamed straight from the connection.
+ * When more than one consumer needs it (the log, the output file, the error
+ * message) it is buffered, either up front or while the first consumer reads
+ * it, and every later consumer reads the buffer.
+ */
+final class ResponseBody implements Closeable {
+
+    /**
+     * Unread bodies up to this size are drained when the body is closed so
+     * the connection can go back to the pool. Larger or unknown length
+     * bodies are left unread, and the connection is dropped instead.
+     */
+    static final long DRAIN_LIMIT = 8 * 1024;
+
+    /**
+     * Largest buffer sized up front from the Content-Length header. Longer
+     * bodies grow their buffer as they are read.
+     */
+    static final int MAX_PRESIZE = 8 * 1024 * 1024;
+
+    private final HttpEntity entity;
+    private final String mimeType;
+    private final Charset charset;
+
+    private SpoolBuffer spool;
+    private boolean opened;
+    private boolean bufferOnRead;
+
+    private ResponseBody(HttpEntity entity) {
+        this.entity = entity;
+
+        ContentType contentType = entity != null ? ContentType.get(entity) : null;
+        this.mimeType = contentType != null && contentType.getMimeType() != null ? contentType.getMimeType() : "";
+        this.charset = contentType != null && contentType.getCharset() != null ? contentType.getCharset() : StandardCharsets.UTF_8;
+    }
+
+    static ResponseBody of(HttpResponse response) {
+        return new ResponseBody(response.getEntity());
+    }
+
+    /**
+     * @return The MIME type of the body, or an empty string if unknown
+     */
+    String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return The charset declared by the response, UTF-8 when not given
+     */
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return The length of the body in bytes, or -1 if unknown
+     */
+    long getContentLength() {
+        return entity != null ? entity.getContentLength() : -1;
+    }
+
+    /**
+     * @param limit Maximum number of bytes that will be kept, or
+     *              {@link HttpBuilder#UNLIMITED}
+     * @param defaultSize Size to use when the length is unknown or too large
+     * @return Initial size for a buffer that holds the body
+     */
+    int getBufferSize(long limit, int defaultSize) {
+        long length = getContentLength();
+        if(limit != HttpBuilder.UNLIMITED && length > limit) {
+            length = limit;
+        }
+        return length > 0 && length <= MAX_PRESIZE ? (int) length : defaultSize;
+    }
+
+    /**
+     * @return True if the body is JSON or XML, which is pretty printed
+     */
+    boolean isFormatted() {
+        return mimeType.contains(HttpBuilder.JSON_FORMAT) || mimeType.contains(HttpBuilder.XML_FORMAT);
+    }
+
+    /**
+     * @return True if the body is text, or its type is unknown. Other bodies
+     *         are only ever copied as bytes.
+     */
+    boolean isText() {
+        return mimeType.isEmpty()
+                || mimeType.startsWith("text/")
+                || isFormatted()
+                || mimeType.contains("javascript")
+                || mimeType.contains("yaml")
+                || mimeType.equals("application/x-www-form-urlencoded");
+    }
+
+    /**
+     * Read the body into a buffer so it can be opened any number of times.
+     *
+     * @throws IOException If the body could not be read
+     */
+    void buffer() throws IOException {
+        bufferOnRead();
+        open().close();
+    }
+
+    /**
+     * Buffer the body as the next consumer reads it, so that consumer still
+     * sees the content as it arrives and later consumers read the buffer.
+     */
+    void bufferOnRead() {
+        bufferOnRead = true;
+    }
+
+    /**
+     * Open the body. An unbuffered body can only be opened once.
+     *
+     * @return The body content, empty if the response has no body
+     * @throws IOException If the body could not be opened
+     */
+    InputStream open() throws IOException {
+        if(entity == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        if(spool != null) {
+            return spool.openInputStream();
+        }
+
+        if(opened) {
+            throw new IllegalStateException("Response body has already been read.");
+        }
+
+        opened = true;
+
+        if(bufferOnRead) {
+            SpoolBuffer copy = new SpoolBuffer();
+            InputStream content = new BufferingInputStream(entity.getContent(), copy);
+            spool = copy;
+            return content;
+        }
+
+        return entity.getContent();
+    }
+
+    /**
+     * Open the body as text in its charset.
+     *
+     * @return The decoded body content
+     * @throws IOException If the body could not be opened
+     */
+    Reader openReader() throws IOException {
+        return new InputStreamReader(open(), charset);
+    }
+
+    /**
+     * Copies everything read into a buffer. Closing it reads whatever the
+     * consumer left unread, so the buffer always holds the whole body.
+     */
+    private static class BufferingInputStream extends FilterInputStream {
+        private final SpoolBuffer copy;
+
+        BufferingInputStream(InputStream in, SpoolBuffer copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if(read > 0) {
+                copy.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] chunk = new byte[(int) Math.min(n, 8192)];
+            int read = read(chunk, 0, chunk.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                byte[] chunk = new byte[8192];
+                while(read(chunk, 0, chunk.length) != -1) {
+                    // keep the rest of the body
+                }
+            } finally {
+                copy.close();
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Release the buffer, if any, and drain a small unread body.
+     */
+    @Override
+    public void close() {
+        if(spool != null) {
+            spool.discard();
+            spool = null;
+        }
+
+        if(entity != null && !opened) {
+            long length = entity.getContentLength();
+            if(length >= 0 && length <= DRAIN_LIMIT) {
+                EntityUtils.consumeQuietly(entity);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package edu.ohio.ais.rundeck.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.SecureRandom;
+
+/**
+ * Writes files by streaming into a temporary file next to the target and
+ * renaming it over the target once complete, so readers never see a
+ * partially written file and a failed download leaves the old file intact.
+ *
+ * The temporary file is created with the default permissions for new files,
+ * as the process umask gives them, and takes the permissions, owner and
+ * group of the file it replaces, so the rename doesn't change who can read
+ * the output.
+ */
+public final class AtomicFile {
+
+    /**
+     * Bytes handed to the file channel per transfer.
+     */
+    private static final long TRANSFER_SIZE = 1024 * 1024;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private AtomicFile() {
+    }
+
+    /**
+     * Produces the content of a file.
+     */
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Write a file with content produced by the caller.
+     *
+     * @param target The file to create or replace
+     * @param content Writes the file content
+     * @throws IOException If the file could not be written
+     */
+    public static void write(File target, Content content) throws IOException {
+        Path path = target.toPath().toAbsolutePath();
+        Path temp = createTemp(path);
+
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                content.writeTo(out);
+            }
+            move(temp, path);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Copy a stream into a file through the file's channel, without
+     * buffering the content in memory. The stream is not closed.
+     *
+     * @param target The file to create or replace
+     * @param in The content to copy, may be null for an empty file
+     * @throws IOException If the stream could not be read or the file written
+     */
+    public static void copy(File target, InputStream in) throws IOException {
+        Path path = target.toPath().toAbsolutePath();
+        Path temp = createTemp(path);
+
+        try {
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                if(in != null) {
+                    ReadableByteChannel source = Channels.newChannel(in);
+                    long position = 0;
+                    long transferred;
+
+                    while((transferred = file.transferFrom(source, position, TRANSFER_SIZE)) > 0) {
+                        position += transferred;
+                    }
+                }
+            }
+            move(temp, path);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Create the temporary file. Files.createTempFile would make it readable
+     * by the owner only, so it is created like any other new file instead,
+     * then given the attributes of the file it replaces.
+     */
+    private static Path createTemp(Path path) throws IOException {
+        Path temp;
+
+        while(true) {
+            temp = path.resolveSibling("." + path.getFileName() + "." + Long.toUnsignedString(random.nextLong(), 36) + ".tmp");
+            try {
+                Files.createFile(temp);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // try another name
+            }
+        }
+
+        try {
+            copyAttributes(path, temp);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        return temp;
+    }
+
+    /**
+     * Give the temporary file the permissions, owner and group of the target,
+     * if it exists on a POSIX file system. Changing the owner or group needs
+     * privileges the process may not have, in which case they are left as
+     * created.
+     */
+    private static void copyAttributes(Path path, Path temp) throws IOException {
+        PosixFileAttributeView targetView = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if(targetView == null || !Files.exists(path)) {
+            return;
+        }
+
+        PosixFileAttributes attributes = targetView.readAttributes();
+        PosixFileAttributeView tempView = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+
+        try {
+            tempView.setGroup(attributes.group());
+        } catch (IOException | SecurityException e) {
+            // keep the default group
+        }
+        try {
+            tempView.setOwner(attributes.owner());
+        } catch (IOException | SecurityException e) {
+            // keep the current user as owner
+        }
+
+        tempView.setPermissions(attributes.permissions());
+    }
+
+    private static void move(Path temp, Path path) throws IOException {
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
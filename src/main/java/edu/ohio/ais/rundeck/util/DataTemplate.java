@@ -0,0 +1,211 @@
+package edu.ohio.ais.rundeck.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * A URL or body option that may contain ${group.key} data context references.
+ *
+ * The template is split once, when the step configuration is compiled, into
+ * literal segments, kept as encoded bytes, and the references between them.
+ * Rendering only hands each reference to the renderer, so the literal text
+ * is never scanned again. Templates that only reference job level data
+ * don't depend on the target node: their last rendering is reused as long
+ * as every reference renders to the same value, so all the nodes of an
+ * execution share one rendered body.
+ */
+public class DataTemplate {
+
+    private static final String REFERENCE_START = "${";
+
+    private final String template;
+    private final boolean dynamic;
+    private final boolean nodeDependent;
+
+    /**
+     * Literal text before each reference, and after the last one. There is
+     * always one more literal than there are references.
+     */
+    private final String[] literals;
+    private final byte[][] literalBytes;
+    private final String[] references;
+    private final int literalLength;
+
+    /**
+     * The last rendering of a template that doesn't depend on the node.
+     */
+    private volatile Rendered last;
+
+    private static final class Rendered {
+        final String[] values;
+        volatile String text;
+        volatile byte[] bytes;
+
+        Rendered(String[] values) {
+            this.values = values;
+        }
+    }
+
+    private DataTemplate(String template) {
+        this.template = template;
+
+        List<String> literals = new ArrayList<>();
+        List<String> references = new ArrayList<>();
+        int pos = 0;
+        int start = template.indexOf(REFERENCE_START);
+
+        while(start >= 0) {
+            int end = template.indexOf('}', start);
+            if(end < 0) {
+                break;
+            }
+
+            literals.add(template.substring(pos, start));
+            references.add(template.substring(start, end + 1));
+            pos = end + 1;
+            start = template.indexOf(REFERENCE_START, pos);
+        }
+        literals.add(template.substring(pos));
+
+        this.literals = literals.toArray(new String[0]);
+        this.references = references.toArray(new String[0]);
+        this.literalBytes = new byte[this.literals.length][];
+
+        int length = 0;
+        for(int i = 0; i < this.literals.length; i++) {
+            literalBytes[i] = this.literals[i].getBytes(StandardCharsets.UTF_8);
+            length += literalBytes[i].length;
+        }
+        this.literalLength = length;
+
+        this.dynamic = this.references.length > 0;
+        this.nodeDependent = hasNodeReference(this.references);
+
+        if(!dynamic) {
+            Rendered rendered = new Rendered(new String[0]);
+            rendered.text = template;
+            rendered.bytes = literalBytes[0];
+            this.last = rendered;
+        }
+    }
+
+    /**
+     * @param template The raw option value
+     * @return The compiled template, or null if the option is not set
+     */
+    public static DataTemplate compile(String template) {
+        return template == null ? null : new DataTemplate(template);
+    }
+
+    /**
+     * A reference depends on the target node if it reads the node group or
+     * uses a node qualifier (${group.key@node}) or multi-node expansion
+     * (${group.key*}).
+     */
+    private static boolean hasNodeReference(String[] references) {
+        for(String reference : references) {
+            String name = reference.substring(REFERENCE_START.length(), reference.length() - 1);
+            if(name.startsWith("node.") || name.indexOf('@') >= 0 || name.indexOf('*') >= 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return True if the template contains data context references.
+     */
+    public boolean isDynamic() {
+        return dynamic;
+    }
+
+    /**
+     * @return True if rendering the template may give a different result for
+     *         each target node.
+     */
+    public boolean isNodeDependent() {
+        return nodeDependent;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * @param renderer Replaces the data context references in the template
+     * @return The rendered template
+     */
+    public String render(UnaryOperator<String> renderer) {
+        Rendered rendered = rendered(renderer);
+        String text = rendered.text;
+
+        if(text == null) {
+            StringBuilder builder = new StringBuilder(template.length());
+            for(int i = 0; i < references.length; i++) {
+                builder.append(literals[i]).append(rendered.values[i]);
+            }
+            text = builder.append(literals[references.length]).toString();
+            rendered.text = text;
+        }
+
+        return text;
+    }
+
+    /**
+     * Render the template as UTF-8, straight from the encoded literals.
+     * Templates that render the same as last time return the same shared
+     * array, so callers must not modify it.
+     *
+     * @param renderer Replaces the data context references in the template
+     * @return The rendered template bytes
+     */
+    public byte[] renderBytes(UnaryOperator<String> renderer) {
+        Rendered rendered = rendered(renderer);
+        byte[] bytes = rendered.bytes;
+
+        if(bytes == null) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(literalLength + 16 * references.length);
+            for(int i = 0; i < references.length; i++) {
+                buffer.write(literalBytes[i], 0, literalBytes[i].length);
+                byte[] value = rendered.values[i].getBytes(StandardCharsets.UTF_8);
+                buffer.write(value, 0, value.length);
+            }
+            buffer.write(literalBytes[references.length], 0, literalBytes[references.length].length);
+            bytes = buffer.toByteArray();
+            rendered.bytes = bytes;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Render each reference. A template that doesn't depend on the node
+     * reuses its last rendering when every reference gives the same value.
+     */
+    private Rendered rendered(UnaryOperator<String> renderer) {
+        if(!dynamic) {
+            return last;
+        }
+
+        String[] values = new String[references.length];
+        for(int i = 0; i < references.length; i++) {
+            values[i] = renderer.apply(references[i]);
+        }
+
+        Rendered previous = this.last;
+        if(previous != null && Arrays.equals(previous.values, values)) {
+            return previous;
+        }
+
+        Rendered rendered = new Rendered(values);
+        if(!nodeDependent) {
+            this.last = rendered;
+        }
+        return rendered;
+    }
+}
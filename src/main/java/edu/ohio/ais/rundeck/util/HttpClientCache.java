@@ -0,0 +1,477 @@
+package edu.ohio.ais.rundeck.util;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.apache.http.ssl.SSLContextBuilder;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide cache of pooled HTTP clients.
+ *
+ * Clients are keyed by the transport settings that need a connection pool
+ * of their own (SSL verification, proxy, the 100 Continue wait, and turning
+ * off compression), so every step and every node using the same settings
+ * shares one connection pool and can reuse keep-alive connections instead
+ * of doing a new TCP and TLS handshake for each request. Pool sizes and the idle
+ * connection timeout are not part of the key: a shared pool grows to the
+ * largest size asked for, and closes idle connections after the shortest
+ * timeout asked for.
+ *
+ * One daemon thread closes idle connections in every pool, and closes whole
+ * pools nobody sent a request through for {@link #POOL_IDLE_EXPIRY}. The
+ * clients handed out send each request through the current pool for their
+ * settings, so a client held past the closing of its pool keeps working.
+ * Cached clients must never be closed by callers; close the response
+ * instead so the connection goes back to the pool.
+ */
+public class HttpClientCache {
+
+    /**
+     * Default maximum number of pooled connections per client.
+     */
+    public static final Integer DEFAULT_MAX_TOTAL = 200;
+
+    /**
+     * Default maximum number of pooled connections per route (host).
+     */
+    public static final Integer DEFAULT_MAX_PER_ROUTE = 50;
+
+    /**
+     * Default time in seconds after which idle pooled connections are closed.
+     */
+    public static final Integer DEFAULT_IDLE_TIMEOUT = 60;
+
+    /**
+     * Pooled connections idle for longer than this many milliseconds are
+     * checked for a half-closed socket before being handed out again.
+     */
+    static final int VALIDATE_AFTER_INACTIVITY = 100;
+
+    /**
+     * Default time in milliseconds to wait for a 100 Continue response before
+     * sending the body anyway.
+     */
+    public static final Integer DEFAULT_WAIT_FOR_CONTINUE = HttpRequestExecutor.DEFAULT_WAIT_FOR_CONTINUE;
+
+    /**
+     * Pools nobody sent a request through for this many milliseconds are
+     * closed, once none of their connections are in use.
+     */
+    static final long POOL_IDLE_EXPIRY = 10 * 60 * 1000;
+
+    /**
+     * Milliseconds between sweeps for idle connections and pools.
+     */
+    static final long SWEEP_INTERVAL = 5 * 1000;
+
+    private static final Map<String, Pool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the sweeps while there are pools. Its thread ends once there are
+     * none left.
+     */
+    private static final ScheduledThreadPoolExecutor sweeper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "http-step-client-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The scheduled sweep, or null while there are no pools. Guarded by
+     * {@link #pools}.
+     */
+    private static ScheduledFuture<?> sweep;
+
+    static {
+        sweeper.setKeepAliveTime(SWEEP_INTERVAL * 2, TimeUnit.MILLISECONDS);
+        sweeper.allowCoreThreadTimeOut(true);
+        Runtime.getRuntime().addShutdownHook(new Thread(HttpClientCache::shutdown, "http-step-client-shutdown"));
+    }
+
+    /**
+     * Settings that identify a pooled client. Two requests with equal settings
+     * share a client.
+     */
+    public static class TransportSettings {
+        boolean sslVerify = true;
+        HttpHost proxy;
+        int maxTotal = DEFAULT_MAX_TOTAL;
+        int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+        int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        boolean compression = true;
+        int waitForContinue = DEFAULT_WAIT_FOR_CONTINUE;
+
+        public TransportSettings setSslVerify(boolean sslVerify) {
+            this.sslVerify = sslVerify;
+            return this;
+        }
+
+        public TransportSettings setProxy(HttpHost proxy) {
+            this.proxy = proxy;
+            return this;
+        }
+
+        public TransportSettings setMaxTotal(int maxTotal) {
+            this.maxTotal = maxTotal;
+            return this;
+        }
+
+        public TransportSettings setMaxPerRoute(int maxPerRoute) {
+            this.maxPerRoute = maxPerRoute;
+            return this;
+        }
+
+        public TransportSettings setIdleTimeout(int idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * @param compression True, the default, to ask for gzip or deflate
+         *                    responses and decompress them as they are
+         *                    read. False to receive responses as sent.
+         */
+        public TransportSettings setCompression(boolean compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * @param waitForContinue Milliseconds to wait for a 100 Continue
+         *                        response before sending the body anyway
+         */
+        public TransportSettings setWaitForContinue(int waitForContinue) {
+            this.waitForContinue = waitForContinue;
+            return this;
+        }
+
+        /**
+         * @return The settings that need a pool of their own. Compression
+         *         is on by default, so only turning it off needs one.
+         */
+        String getKey() {
+            return "ssl=" + sslVerify
+                    + ";proxy=" + (proxy == null ? "" : proxy.toURI())
+                    + ";continue=" + waitForContinue
+                    + (compression ? "" : ";uncompressed");
+        }
+
+        private TransportSettings copy() {
+            TransportSettings copy = new TransportSettings();
+            copy.sslVerify = sslVerify;
+            copy.proxy = proxy;
+            copy.maxTotal = maxTotal;
+            copy.maxPerRoute = maxPerRoute;
+            copy.idleTimeout = idleTimeout;
+            copy.compression = compression;
+            copy.waitForContinue = waitForContinue;
+            return copy;
+        }
+    }
+
+    /**
+     * A connection pool, the client sending requests through it, and the
+     * client handed out for it.
+     */
+    private static final class Pool {
+        final PoolingHttpClientConnectionManager connectionManager;
+        final CloseableHttpClient client;
+        final CloseableHttpClient shared;
+
+        /**
+         * Requests being sent through the pool, or -1 once it is closed.
+         */
+        final AtomicInteger users = new AtomicInteger();
+        volatile long lastUsed = System.currentTimeMillis();
+        volatile int idleTimeout;
+
+        Pool(TransportSettings settings) throws GeneralSecurityException {
+            this.connectionManager = createConnectionManager(settings);
+            this.client = createClient(settings, connectionManager);
+            this.shared = new SharedClient(settings.copy());
+            this.idleTimeout = settings.idleTimeout;
+        }
+
+        /**
+         * Grow the pool to the sizes the settings ask for, and shorten its
+         * idle timeout to theirs. The pool never shrinks, so steps asking
+         * for different sizes don't resize it back and forth.
+         */
+        synchronized void adjust(TransportSettings settings) {
+            if(settings.maxTotal > connectionManager.getMaxTotal()) {
+                connectionManager.setMaxTotal(settings.maxTotal);
+            }
+            if(settings.maxPerRoute > connectionManager.getDefaultMaxPerRoute()) {
+                connectionManager.setDefaultMaxPerRoute(settings.maxPerRoute);
+            }
+            if(settings.idleTimeout < idleTimeout) {
+                idleTimeout = settings.idleTimeout;
+            }
+        }
+
+        /**
+         * @return False if the pool was closed, and a new one must be used
+         */
+        boolean acquire() {
+            while(true) {
+                int count = users.get();
+                if(count < 0) {
+                    return false;
+                }
+                if(users.compareAndSet(count, count + 1)) {
+                    lastUsed = System.currentTimeMillis();
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            lastUsed = System.currentTimeMillis();
+            users.decrementAndGet();
+        }
+
+        /**
+         * Close idle connections, and stop handing out the pool if nobody
+         * used it for {@link #POOL_IDLE_EXPIRY} and none of its connections
+         * are in use.
+         *
+         * @return True if the pool must be closed
+         */
+        boolean sweep(long now) {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+
+            if(now - lastUsed < POOL_IDLE_EXPIRY || !users.compareAndSet(0, -1)) {
+                return false;
+            }
+            // A response still being read holds its connection.
+            if(connectionManager.getTotalStats().getLeased() > 0) {
+                users.set(0);
+                return false;
+            }
+            return true;
+        }
+
+        void close() {
+            users.set(-1);
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The client handed out for a pool. Each request goes through the
+     * current pool for its settings, so a pool closed while idle is replaced
+     * on the next request. Closing it does nothing, the pool is shared.
+     */
+    private static final class SharedClient extends CloseableHttpClient {
+        private final TransportSettings settings;
+
+        SharedClient(TransportSettings settings) {
+            this.settings = settings;
+        }
+
+        @Override
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+            while(true) {
+                Pool pool;
+                try {
+                    pool = getPool(settings);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Error creating the connection pool: " + e.getMessage(), e);
+                }
+
+                if(pool.acquire()) {
+                    try {
+                        return pool.client.execute(target, request, context);
+                    } finally {
+                        pool.release();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        @Deprecated
+        public HttpParams getParams() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        @Deprecated
+        public ClientConnectionManager getConnectionManager() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Get the shared client for the given settings, creating its pool on
+     * first use.
+     *
+     * @param settings Transport settings for the client.
+     * @return A pooled client. Do not close it.
+     * @throws GeneralSecurityException If the SSL context cannot be built.
+     */
+    public static CloseableHttpClient getClient(TransportSettings settings) throws GeneralSecurityException {
+        Pool pool = getPool(settings);
+        pool.adjust(settings);
+        return pool.shared;
+    }
+
+    private static Pool getPool(TransportSettings settings) throws GeneralSecurityException {
+        String key = settings.getKey();
+        Pool pool = pools.get(key);
+
+        if(pool == null) {
+            synchronized(pools) {
+                pool = pools.get(key);
+                if(pool == null) {
+                    pool = new Pool(settings);
+                    pools.put(key, pool);
+
+                    if(sweep == null) {
+                        sweep = sweeper.scheduleWithFixedDelay(HttpClientCache::sweep,
+                                SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+
+        return pool;
+    }
+
+    private static void sweep() {
+        sweep(System.currentTimeMillis());
+    }
+
+    /**
+     * Close idle connections and pools. Stops sweeping once there are no
+     * pools left.
+     *
+     * @param now The current time, in milliseconds since the epoch
+     */
+    static void sweep(long now) {
+        for(Map.Entry<String, Pool> entry : pools.entrySet()) {
+            if(entry.getValue().sweep(now)) {
+                pools.remove(entry.getKey(), entry.getValue());
+                entry.getValue().close();
+            }
+        }
+
+        synchronized(pools) {
+            if(pools.isEmpty() && sweep != null) {
+                sweep.cancel(false);
+                sweep = null;
+            }
+        }
+    }
+
+    /**
+     * Create a client with a pool of its own, which is not cached or swept.
+     *
+     * @param settings Transport settings for the client.
+     * @return A new pooled client. The caller closes it.
+     * @throws GeneralSecurityException If the SSL context cannot be built.
+     */
+    static CloseableHttpClient createClient(TransportSettings settings) throws GeneralSecurityException {
+        return createClient(settings, createConnectionManager(settings));
+    }
+
+    private static PoolingHttpClientConnectionManager createConnectionManager(TransportSettings settings) throws GeneralSecurityException {
+        RegistryBuilder<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory());
+
+        if(settings.sslVerify) {
+            registry.register("https", SSLConnectionSocketFactory.getSocketFactory());
+        } else {
+            SSLContextBuilder sslContextBuilder = new SSLContextBuilder();
+            sslContextBuilder.loadTrustMaterial(null, new TrustStrategy() {
+                @Override
+                public boolean isTrusted(X509Certificate[] x509Certificates, String s) throws CertificateException {
+                    return true;
+                }
+            });
+
+            registry.register("https", new SSLConnectionSocketFactory(sslContextBuilder.build(), NoopHostnameVerifier.INSTANCE));
+        }
+
+        Registry<ConnectionSocketFactory> socketFactories = registry.build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+        connectionManager.setMaxTotal(settings.maxTotal);
+        connectionManager.setDefaultMaxPerRoute(settings.maxPerRoute);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+        return connectionManager;
+    }
+
+    private static CloseableHttpClient createClient(TransportSettings settings, PoolingHttpClientConnectionManager connectionManager) {
+        HttpClientBuilder httpClientBuilder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .disableAuthCaching()
+                .disableAutomaticRetries()
+                .setRequestExecutor(new HttpRequestExecutor(settings.waitForContinue));
+
+        if(settings.proxy != null) {
+            httpClientBuilder.setProxy(settings.proxy);
+        }
+
+        if(!settings.compression) {
+            httpClientBuilder.disableContentCompression();
+        }
+
+        return httpClientBuilder.build();
+    }
+
+    /**
+     * Close every cached pool. Pools for later requests are created fresh.
+     */
+    public static void shutdown() {
+        List<Pool> closing;
+
+        synchronized(pools) {
+            closing = new ArrayList<>(pools.values());
+            pools.clear();
+        }
+
+        for(Pool pool : closing) {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package edu.ohio.ais.rundeck.util;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Pretty prints JSON by copying tokens from a reader to a writer, so memory
+ * use doesn't depend on the size of the document.
+ *
+ * Output matches Gson's pretty printing: two space indents, HTML characters
+ * escaped and object members with null values left out.
+ *
+ * The reader is lenient, so it would happily read several values one after
+ * the other. Use {@link #isWellFormed(Reader)} first to make sure the body
+ * holds a single value.
+ */
+public final class JsonFormatter {
+
+    private JsonFormatter() {
+    }
+
+    /**
+     * Check that the input holds one JSON value and nothing after it, without
+     * building a parse tree.
+     *
+     * @param in The JSON to check, not closed
+     * @return True if the input is empty or a single JSON value
+     */
+    public static boolean isWellFormed(Reader in) {
+        JsonReader reader = newReader(in);
+
+        try {
+            reader.peek();
+        } catch (EOFException e) {
+            // Empty document
+            return true;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+
+        try {
+            reader.skipValue();
+            return reader.peek() == JsonToken.END_DOCUMENT;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reformat the JSON value read from the input. Empty input writes
+     * nothing.
+     *
+     * @param in The JSON to format, read leniently
+     * @param out Receives the formatted JSON, flushed but not closed
+     * @throws IOException If the input can't be read, is not valid JSON or
+     *         has more content after the first value
+     */
+    public static void format(Reader in, Writer out) throws IOException {
+        JsonReader reader = newReader(in);
+
+        JsonWriter writer = new JsonWriter(out);
+        writer.setIndent("  ");
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+
+        try {
+            reader.peek();
+        } catch (EOFException e) {
+            // Empty document
+            return;
+        }
+
+        int depth = 0;
+
+        do {
+            switch(reader.peek()) {
+                case BEGIN_OBJECT:
+                    reader.beginObject();
+                    writer.beginObject();
+                    depth++;
+                    break;
+                case END_OBJECT:
+                    reader.endObject();
+                    writer.endObject();
+                    depth--;
+                    break;
+                case BEGIN_ARRAY:
+                    reader.beginArray();
+                    writer.beginArray();
+                    depth++;
+                    break;
+                case END_ARRAY:
+                    reader.endArray();
+                    writer.endArray();
+                    depth--;
+                    break;
+                case NAME:
+                    writer.name(reader.nextName());
+                    break;
+                case STRING:
+                    writer.value(reader.nextString());
+                    break;
+                case NUMBER:
+                    // Keep the number exactly as it was written.
+                    writer.jsonValue(reader.nextString());
+                    break;
+                case BOOLEAN:
+                    writer.value(reader.nextBoolean());
+                    break;
+                case NULL:
+                    reader.nextNull();
+                    writer.nullValue();
+                    break;
+                default:
+                    throw new IOException("Unexpected end of JSON document");
+            }
+        } while(depth > 0);
+
+        if(reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new IOException("Unexpected content after the JSON document");
+        }
+
+        writer.flush();
+    }
+
+    private static JsonReader newReader(Reader in) {
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        return reader;
+    }
+}
@@ -0,0 +1,63 @@
+package edu.ohio.ais.rundeck.util;
+
+import com.dtolabs.rundeck.core.storage.ResourceMeta;
+import com.dtolabs.rundeck.core.storage.StorageTree;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Request body streamed from a key storage resource.
+ *
+ * The resource is looked up again every time the body is written, so the
+ * entity can be retried and shared between requests without ever holding
+ * the content in memory. Resources of unknown length are sent chunked.
+ */
+public class KeyStorageEntity extends AbstractHttpEntity {
+
+    private final StorageTree storageTree;
+    private final String path;
+    private final long length;
+
+    /**
+     * @param storageTree The key storage of the execution
+     * @param path Path of the resource to send
+     * @throws RuntimeException If the resource can't be read
+     */
+    public KeyStorageEntity(StorageTree storageTree, String path) {
+        this.storageTree = storageTree;
+        this.path = path;
+        this.length = getContents().getContentLength();
+    }
+
+    private ResourceMeta getContents() {
+        return storageTree.getResource(path).getContents();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        return getContents().getInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        getContents().writeContent(outstream);
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,268 @@
+package edu.ohio.ais.rundeck.util;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A multipart/form-data request body, streamed part by part.
+ *
+ * Each part's content is another entity, written straight to the connection
+ * between the part headers, so file and key storage parts are never held in
+ * memory. The body has a length when every part does, and is sent chunked
+ * otherwise. The entity is repeatable when all of its parts are.
+ */
+public class MultipartEntity extends AbstractHttpEntity {
+
+    private static final char[] BOUNDARY_CHARS =
+            "-_1234567890abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ".toCharArray();
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * One field of the form.
+     */
+    public static class Part {
+        private final String name;
+        private final String filename;
+        private final String contentType;
+        private final HttpEntity content;
+
+        /**
+         * @param name Field name
+         * @param filename File name sent with the field, or null for none
+         * @param contentType Content type of the field, or null for none
+         * @param content The field content
+         * @throws IllegalArgumentException If the content type has a line
+         *         break, which would end the part header early
+         */
+        public Part(String name, String filename, String contentType, HttpEntity content) {
+            if(contentType != null && (contentType.indexOf('\r') >= 0 || contentType.indexOf('\n') >= 0)) {
+                throw new IllegalArgumentException("The content type of part " + name + " can't contain line breaks.");
+            }
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public HttpEntity getContent() {
+            return content;
+        }
+    }
+
+    private final List<Part> parts;
+    private final byte[][] partHeaders;
+    private final byte[] closing;
+    private final long length;
+
+    /**
+     * @param parts The form fields, in order
+     * @param partLengths True to send a Content-Length header with each part
+     *                    whose length is known
+     */
+    public MultipartEntity(List<Part> parts, boolean partLengths) {
+        this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+
+        String boundary = generateBoundary();
+        setContentType("multipart/form-data; boundary=" + boundary);
+
+        this.partHeaders = new byte[parts.size()][];
+        long total = 0;
+
+        for(int i = 0; i < parts.size(); i++) {
+            Part part = parts.get(i);
+            partHeaders[i] = partHeader(boundary, part, partLengths);
+
+            long partLength = part.getContent().getContentLength();
+            if(total >= 0 && partLength >= 0) {
+                total += partHeaders[i].length + partLength + CRLF.length;
+            } else {
+                total = -1;
+            }
+        }
+
+        this.closing = ("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.length = total >= 0 ? total + closing.length : -1;
+    }
+
+    private static String generateBoundary() {
+        char[] boundary = new char[32];
+        for(int i = 0; i < boundary.length; i++) {
+            boundary[i] = BOUNDARY_CHARS[random.nextInt(BOUNDARY_CHARS.length)];
+        }
+        return new String(boundary);
+    }
+
+    private static byte[] partHeader(String boundary, Part part, boolean partLengths) {
+        StringBuilder header = new StringBuilder(128)
+                .append("--").append(boundary).append("\r\n")
+                .append("Content-Disposition: form-data; name=\"").append(escape(part.getName())).append('"');
+
+        if(part.getFilename() != null) {
+            header.append("; filename=\"").append(escape(part.getFilename())).append('"');
+        }
+        header.append("\r\n");
+
+        if(part.getContentType() != null) {
+            header.append("Content-Type: ").append(part.getContentType()).append("\r\n");
+        }
+
+        long partLength = part.getContent().getContentLength();
+        if(partLengths && partLength >= 0) {
+            header.append("Content-Length: ").append(partLength).append("\r\n");
+        }
+
+        return header.append("\r\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Escape a field or file name the way browsers do, so it can't end the
+     * quoted string or the header early.
+     */
+    private static String escape(String value) {
+        return value.replace("\r", "%0D").replace("\n", "%0A").replace("\"", "%22");
+    }
+
+    /**
+     * @return The form fields, in order
+     */
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        for(Part part : parts) {
+            if(!part.getContent().isRepeatable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return length;
+    }
+
+    /**
+     * @return The body as a stream, reading each part's content in turn, so
+     *         it is never held in memory. Each part is only opened once the
+     *         stream reaches it.
+     */
+    @Override
+    public InputStream getContent() {
+        return new ContentStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        for(int i = 0; i < parts.size(); i++) {
+            outstream.write(partHeaders[i]);
+            parts.get(i).getContent().writeTo(outstream);
+            outstream.write(CRLF);
+        }
+        outstream.write(closing);
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Reads the part headers, part contents and separators one after the
+     * other, the same bytes as {@link #writeTo(OutputStream)} writes.
+     */
+    private class ContentStream extends InputStream {
+
+        /**
+         * Three segments per part, header, content and line break, then the
+         * closing boundary.
+         */
+        private int segment;
+        private InputStream current;
+        private boolean closed;
+
+        /**
+         * @return False once every segment has been read
+         */
+        private boolean next() throws IOException {
+            if(closed || segment > 3 * parts.size()) {
+                return false;
+            }
+
+            int part = segment / 3;
+            if(segment == 3 * parts.size()) {
+                current = new ByteArrayInputStream(closing);
+            } else if(segment % 3 == 0) {
+                current = new ByteArrayInputStream(partHeaders[part]);
+            } else if(segment % 3 == 1) {
+                current = parts.get(part).getContent().getContent();
+            } else {
+                current = new ByteArrayInputStream(CRLF);
+            }
+            segment++;
+
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+
+            while(current != null || next()) {
+                int read = current.read(b, off, len);
+                if(read >= 0) {
+                    return read;
+                }
+                current.close();
+                current = null;
+            }
+
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if(current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+}
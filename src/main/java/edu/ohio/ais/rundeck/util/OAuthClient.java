@@ -8,36 +8,145 @@ import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Simple OAuth client to manage obtaining tokens and providing
  * them for HTTP requests.
  *
  * Currently this only supports the CLIENT_CREDENTIALS grant type.
+ *
+ * When the token endpoint says how long a token lasts (expires_in), the
+ * token is refreshed on a background thread before it expires, so callers
+ * keep getting a valid token without waiting. The background refresh talks
+ * to the token endpoint without holding the client's lock, and only takes
+ * it to publish the new token. The current token is read without locking.
+ * Callers only fetch a token themselves when there is no valid one, one
+ * caller at a time.
+ *
+ * A token that passed validation isn't validated again, unless a validation
+ * lifetime is set and has passed. A caller with a validate endpoint never
+ * uses a token that wasn't validated at that endpoint, even if another
+ * caller fetched it without validating it.
+ *
+ * Requests go through a pooled client from {@link HttpClientCache}, bounded
+ * by the client timeout, and every response is released once read so its
+ * connection goes back to the pool.
+ *
+ * Clients are shared between steps, which may use different SSL, proxy,
+ * timeout and validation settings. Each step passes its own
+ * {@link Settings} with every call instead of changing the client, and a
+ * background refresh uses the settings the current token was fetched with.
+ * The setters only change the settings used by calls that don't pass any.
+ * For the same reason the client never keeps a logger: callers pass the
+ * logger of their own step, and calls that don't, or that run in the
+ * background, don't log.
  */
 public class OAuthClient {
 
-    PluginLogger log;
-
     public static final String JSON_CONTENT_TYPE = "application/json";
     public static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
 
     public static final String FIELD_GRANT_TYPE = "grant_type";
     public static final String FIELD_ACCESS_TOKEN = "access_token";
+    public static final String FIELD_EXPIRES_IN = "expires_in";
 
     public static final Integer STATUS_SUCCESS = 200;
     public static final Integer STATUS_AUTHORIZATION_REQUIRED = 401;
 
+    /**
+     * A token is treated as expired this many milliseconds before it really
+     * expires, so it doesn't run out while a request is on its way.
+     */
+    static final long EXPIRY_MARGIN = 10 * 1000;
+
+    /**
+     * Tokens are refreshed in the background after this fraction of their
+     * lifetime, plus up to {@link #REFRESH_JITTER} more, so clients that got
+     * their tokens together don't all refresh at the same moment.
+     */
+    static final double REFRESH_AT = 0.75;
+    static final double REFRESH_JITTER = 0.10;
+
+    /**
+     * Tokens that last less than this many milliseconds are not refreshed in
+     * the background.
+     */
+    static final long MIN_REFRESH_LIFETIME = 30 * 1000;
+
+    /**
+     * Default time in milliseconds to wait for the token and validate
+     * endpoints, to connect, to lease a pooled connection and between
+     * packets of the response.
+     */
+    public static final Integer DEFAULT_TIMEOUT = 10 * 1000;
+
+    /**
+     * Threads refreshing tokens in the background, shared by every client,
+     * so a slow token endpoint only holds up refreshes behind it on the same
+     * thread.
+     */
+    static final int REFRESH_THREADS = 4;
+
+    /**
+     * Threads validating new tokens in the background, and how many
+     * validations may wait for them. When the queue is full, the caller
+     * validates its token itself.
+     */
+    static final int VALIDATION_THREADS = 2;
+    static final int VALIDATION_QUEUE = 100;
+
+    private static final ScheduledExecutorService refreshScheduler =
+            Executors.newScheduledThreadPool(REFRESH_THREADS, daemonThreads("http-step-oauth-refresh-"));
+
+    private static final ThreadPoolExecutor validationExecutor = new ThreadPoolExecutor(VALIDATION_THREADS, VALIDATION_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(VALIDATION_QUEUE), daemonThreads("http-step-oauth-validate-"));
+
+    static {
+        validationExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Rundeck only accepts log output from the step thread, so background
+     * refreshes, and calls that don't pass a logger, don't log.
+     */
+    private static final PluginLogger SILENT = new PluginLogger() {
+        @Override
+        public void log(int level, String message) {
+        }
+
+        @Override
+        public void log(int level, String message, Map eventMeta) {
+        }
+
+        @Override
+        public void event(String eventType, String message, Map eventMeta) {
+        }
+    };
+
     public enum GrantType {
         CLIENT_CREDENTIALS
     }
@@ -48,33 +157,120 @@ public class OAuthClient {
         }
     }
 
-    protected HttpClient httpClient;
+    /**
+     * How token and validate requests are sent, and how tokens are
+     * validated, for one call.
+     */
+    public static final class Settings {
+        final HttpClient httpClient;
+        final RequestConfig requestConfig;
+        final String validateEndpoint;
+        final long validationTtl;
+        final boolean validateAsync;
+
+        /**
+         * @param httpClient The client to send requests through, for instance
+         *                   the pooled client of the step so the same SSL and
+         *                   proxy settings apply. It is shared and never
+         *                   closed here.
+         * @param timeout Milliseconds to wait for the token and validate
+         *                endpoints, or 0 to wait forever
+         * @param validateEndpoint Complete URI to the validate endpoint, or null
+         * @param validationTtl Milliseconds a successful validation is
+         *                      trusted, or 0 for as long as the token is used
+         * @param validateAsync True to validate new tokens in the background
+         */
+        public Settings(HttpClient httpClient, int timeout, String validateEndpoint, long validationTtl, boolean validateAsync) {
+            this(httpClient, timeoutConfig(timeout), validateEndpoint, validationTtl, validateAsync);
+        }
+
+        private Settings(HttpClient httpClient, RequestConfig requestConfig, String validateEndpoint, long validationTtl,
+                         boolean validateAsync) {
+            this.httpClient = httpClient;
+            this.requestConfig = requestConfig;
+            this.validateEndpoint = validateEndpoint;
+            this.validationTtl = validationTtl;
+            this.validateAsync = validateAsync;
+        }
+    }
+
+    protected volatile HttpClient httpClient;
+    private volatile RequestConfig requestConfig = timeoutConfig(DEFAULT_TIMEOUT);
     protected ObjectMapper jsonParser = new ObjectMapper();
 
     String clientId;
-    String clientSecret;
+    volatile String clientSecret;
 
     GrantType grantType;
 
     String tokenEndpoint;
-    String validateEndpoint;
+    volatile String validateEndpoint;
 
-    String accessToken;
+    volatile String accessToken;
+
+    /**
+     * When the access token expires, in milliseconds since the epoch, or 0
+     * if the token endpoint didn't say.
+     */
+    volatile long expiresAt;
+
+    /**
+     * The last token that passed validation, and until when that result is
+     * trusted, published together.
+     */
+    private volatile Validation validated;
+
+    /**
+     * The token being validated in the background, and where, so callers
+     * with the same settings don't validate it again meanwhile.
+     */
+    private volatile Validation pendingValidation;
+
+    /**
+     * The settings the current token was fetched with, used to refresh it.
+     */
+    private volatile Settings tokenSettings;
+    private volatile long validationTtl;
+
+    private volatile boolean validateAsync;
+    private volatile boolean asyncValidationFailed;
+
+    private volatile long tokenIssuedAt;
+    private volatile long lastUsed;
+    private ScheduledFuture<?> refreshTask;
+
+    /**
+     * Counts every token published or invalidated, guarded by the lock. A
+     * background refresh only publishes its token if this hasn't changed.
+     */
+    private long generation;
 
     /**
      * Initialize the OAuth client with the specified grant type.
      *
      * @param grantType
      */
-    public OAuthClient(GrantType grantType, PluginLogger log) {
-        this.httpClient = HttpClientBuilder.create()
-                .disableAuthCaching()
-                .disableAutomaticRetries()
-                .build();
-
-        this.log = log;
+    public OAuthClient(GrantType grantType) {
+        try {
+            this.httpClient = HttpClientCache.getClient(new HttpClientCache.TransportSettings());
+        } catch (GeneralSecurityException e) {
+            // Only a client that skips certificate checks builds its own SSL context.
+            throw new IllegalStateException(e);
+        }
 
         this.grantType = grantType;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * @param grantType
+     * @param log Not kept. Clients are shared between steps, so each call
+     *            takes the logger of the calling step instead.
+     * @deprecated Use {@link #OAuthClient(GrantType)}
+     */
+    @Deprecated
+    public OAuthClient(GrantType grantType, PluginLogger log) {
+        this(grantType);
     }
 
     /**
@@ -85,9 +281,10 @@ public class OAuthClient {
      * gracefully return just the status text.
      *
      * @param response The HTTP response.
+     * @param log Logger of the calling step
      * @return Error string
      */
-    protected String buildError(HttpResponse response) {
+    protected String buildError(HttpResponse response, PluginLogger log) {
         String error = response.getStatusLine().getReasonPhrase();
 
         try {
@@ -108,6 +305,43 @@ public class OAuthClient {
         return error;
     }
 
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static RequestConfig timeoutConfig(int timeout) {
+        return RequestConfig.custom()
+                .setConnectionRequestTimeout(timeout)
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+    }
+
+    /**
+     * Read whatever is left of the response and close it, so the connection
+     * goes back to the pool even when the body wasn't needed.
+     */
+    private static void release(HttpResponse response) {
+        EntityUtils.consumeQuietly(response.getEntity());
+
+        if(response instanceof Closeable) {
+            try {
+                ((Closeable) response).close();
+            } catch (IOException ignored) {
+                // the connection is dropped instead of reused
+            }
+        }
+    }
+
     /**
      * Retrieve an access token with our client credentials.
      *
@@ -116,7 +350,89 @@ public class OAuthClient {
      */
     void doTokenRequest() throws HttpResponseException, OAuthException, IOException {
         this.accessToken = null;
+        this.doTokenRequest(SILENT, this.defaults());
+    }
+
+    /**
+     * A token that passed validation at an endpoint, and when. Each caller
+     * decides from its own validation lifetime whether that is still
+     * trusted.
+     */
+    private static final class Validation {
+        final String token;
+        final String endpoint;
+        final long at;
+
+        Validation(String token, String endpoint, long at) {
+            this.token = token;
+            this.endpoint = endpoint;
+            this.at = at;
+        }
+
+        boolean isFor(String token, Settings settings) {
+            return this.token.equals(token) && this.endpoint.equals(settings.validateEndpoint);
+        }
+
+        boolean isCurrent(String token, Settings settings) {
+            return isFor(token, settings)
+                    && (settings.validationTtl <= 0 || System.currentTimeMillis() < this.at + settings.validationTtl);
+        }
+    }
+
+    /**
+     * @return The settings set on this client, for calls that don't pass any
+     */
+    private Settings defaults() {
+        return new Settings(this.httpClient, this.requestConfig, this.validateEndpoint, this.validationTtl, this.validateAsync);
+    }
 
+    /**
+     * A token returned by the token endpoint.
+     */
+    private static final class TokenResponse {
+        final String token;
+        final long expiresIn;
+
+        TokenResponse(String token, long expiresIn) {
+            this.token = token;
+            this.expiresIn = expiresIn;
+        }
+    }
+
+    /**
+     * Retrieve and validate a new access token. The current token is only
+     * replaced once the new one has been validated.
+     */
+    private synchronized void doTokenRequest(PluginLogger log, Settings settings) throws HttpResponseException, OAuthException, IOException {
+        TokenResponse response = this.fetchToken(log, settings);
+        String token = response.token;
+
+        if(settings.validateAsync && !this.asyncValidationFailed && settings.validateEndpoint != null) {
+            // Let the caller use the token while it is validated. A failed
+            // validation needs the lock to discard the token, so it can only
+            // do that once the token has been published below.
+            this.pendingValidation = new Validation(token, settings.validateEndpoint, System.currentTimeMillis());
+            try {
+                validationExecutor.execute(() -> this.validateInBackground(token, settings));
+                log.log(5, "Validating access token in the background");
+                this.setAccessToken(token, response.expiresIn, log, settings);
+                return;
+            } catch (RejectedExecutionException e) {
+                this.pendingValidation = null;
+                log.log(5, "Background validation is busy, validating access token now");
+            }
+        }
+
+        this.isTokenValid(token, true, log, settings);
+        this.setAccessToken(token, response.expiresIn, log, settings);
+    }
+
+    /**
+     * Request a token from the token endpoint. Nothing is locked, so a
+     * background refresh never holds up callers while it waits for the
+     * endpoint.
+     */
+    private TokenResponse fetchToken(PluginLogger log, Settings settings) throws HttpResponseException, IOException {
         log.log(5, "Requesting access token from " + this.tokenEndpoint);
 
         List<NameValuePair> params = new ArrayList<>();
@@ -127,18 +443,126 @@ public class OAuthClient {
                 .setHeader(HttpHeaders.AUTHORIZATION, "Basic " + com.dtolabs.rundeck.core.utils.Base64.encode(this.clientId + ":" + this.clientSecret))
                 .setHeader(HttpHeaders.ACCEPT, JSON_CONTENT_TYPE)
                 .setHeader(HttpHeaders.CONTENT_TYPE, FORM_CONTENT_TYPE)
+                .setConfig(settings.requestConfig)
                 .setEntity(new UrlEncodedFormEntity(params)).build();
 
-        HttpResponse response = this.httpClient.execute(request);
+        HttpResponse response = settings.httpClient.execute(request);
 
-        if(response.getStatusLine().getStatusCode() == STATUS_SUCCESS) {
-            JsonNode data = jsonParser.readTree(EntityUtils.toString(response.getEntity()));
-            this.accessToken = data.get(FIELD_ACCESS_TOKEN).asText();
-        } else {
-            throw new HttpResponseException(response.getStatusLine().getStatusCode(), buildError(response));
+        String token;
+        long expiresIn = 0;
+
+        try {
+            if(response.getStatusLine().getStatusCode() == STATUS_SUCCESS) {
+                JsonNode data = jsonParser.readTree(EntityUtils.toString(response.getEntity()));
+                token = data.get(FIELD_ACCESS_TOKEN).asText();
+                if(data.has(FIELD_EXPIRES_IN)) {
+                    expiresIn = data.get(FIELD_EXPIRES_IN).asLong(0);
+                }
+            } else {
+                throw new HttpResponseException(response.getStatusLine().getStatusCode(), buildError(response, log));
+            }
+        } finally {
+            release(response);
         }
 
-        this.doTokenValidate(true);
+        return new TokenResponse(token, expiresIn);
+    }
+
+    /**
+     * Validate a token that is already in use. If it fails, the token is
+     * discarded and later tokens are validated before they are used, so the
+     * failure is reported to the next caller.
+     */
+    private void validateInBackground(String token, Settings settings) {
+        try {
+            this.isTokenValid(token, true, SILENT, settings);
+        } catch (Exception e) {
+            synchronized(this) {
+                this.asyncValidationFailed = true;
+                if(token.equals(this.accessToken)) {
+                    this.invalidateAccessToken(SILENT);
+                }
+            }
+        } finally {
+            Validation pending = this.pendingValidation;
+            if(pending != null && pending.isFor(token, settings)) {
+                this.pendingValidation = null;
+            }
+        }
+    }
+
+    /**
+     * Publish a new token and schedule its background refresh. The expiry is
+     * written before the token, so a caller reading the new token also sees
+     * when it expires.
+     *
+     * @param token The new access token
+     * @param expiresIn Lifetime of the token in seconds, or 0 if unknown
+     * @param settings The settings the token was fetched with
+     */
+    private synchronized void setAccessToken(String token, long expiresIn, PluginLogger log, Settings settings) {
+        long now = System.currentTimeMillis();
+        long lifetime = expiresIn * 1000;
+
+        this.generation++;
+        this.tokenSettings = settings;
+        this.tokenIssuedAt = now;
+        this.expiresAt = lifetime > 0 ? now + lifetime : 0;
+        this.accessToken = token;
+
+        cancelRefresh();
+
+        if(lifetime >= MIN_REFRESH_LIFETIME) {
+            long delay = (long) (lifetime * (REFRESH_AT + ThreadLocalRandom.current().nextDouble() * REFRESH_JITTER));
+            log.log(5, "Access token expires in " + expiresIn + " seconds, refreshing it in " + (delay / 1000) + " seconds");
+            refreshTask = refreshScheduler.schedule(this::refreshInBackground, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void cancelRefresh() {
+        if(refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+    }
+
+    /**
+     * Fetch a new token ahead of the current one's expiry. Clients that
+     * haven't been used since their token was issued are left to expire, so
+     * finished jobs don't keep refreshing forever. On failure the current
+     * token is kept, and callers fetch one themselves once it expires.
+     *
+     * The token is fetched and validated without holding the lock, so
+     * callers keep using the current token meanwhile. The new token is only
+     * published if no other token was published or invalidated since the
+     * refresh started.
+     */
+    private void refreshInBackground() {
+        long started;
+        Settings settings;
+
+        synchronized(this) {
+            refreshTask = null;
+
+            if(this.accessToken == null || this.lastUsed < this.tokenIssuedAt) {
+                return;
+            }
+            started = this.generation;
+            settings = this.tokenSettings;
+        }
+
+        try {
+            TokenResponse response = this.fetchToken(SILENT, settings);
+            this.isTokenValid(response.token, true, SILENT, settings);
+
+            synchronized(this) {
+                if(this.generation == started) {
+                    this.setAccessToken(response.token, response.expiresIn, SILENT, settings);
+                }
+            }
+        } catch (Exception ignored) {
+            // keep the current token until it expires
+        }
     }
 
     /**
@@ -174,22 +598,52 @@ public class OAuthClient {
      * @throws IOException
      * @throws OAuthException
      */
-    void doTokenValidate(Boolean newToken) throws HttpResponseException, IOException, OAuthException {
-        if(this.accessToken == null) {
-            this.doTokenRequest();
+    synchronized void doTokenValidate(Boolean newToken) throws HttpResponseException, IOException, OAuthException {
+        this.doTokenValidate(newToken, SILENT, this.defaults());
+    }
+
+    private synchronized void doTokenValidate(boolean newToken, PluginLogger log, Settings settings) throws HttpResponseException, IOException, OAuthException {
+        String token = this.accessToken;
+
+        if(token == null) {
+            this.doTokenRequest(log, settings);
+        } else if(!this.isTokenValid(token, newToken, log, settings)) {
+            this.accessToken = null;
+            this.doTokenRequest(log, settings);
         }
+    }
 
-        if(this.validateEndpoint != null) {
-            log.log(5,"Validating access token at " + this.validateEndpoint);
+    /**
+     * Check a token against the validate endpoint, if there is one.
+     *
+     * @return True if the token is valid, false if it was rejected with 401
+     * @throws OAuthException If the token belongs to another client, or a new
+     *                        token was rejected
+     */
+    private boolean isTokenValid(String token, boolean newToken, PluginLogger log, Settings settings) throws HttpResponseException, IOException, OAuthException {
+        if(settings.validateEndpoint == null) {
+            log.log(5, "No validate endpoint exists, skipping validation.");
+            return true;
+        }
 
-            HttpUriRequest request = RequestBuilder.create("GET")
-                    .setUri(this.validateEndpoint)
-                    .setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + this.accessToken)
-                    .setHeader(HttpHeaders.ACCEPT, JSON_CONTENT_TYPE)
-                    .build();
+        Validation validated = this.validated;
+        if(validated != null && validated.isCurrent(token, settings)) {
+            log.log(5, "Access token was already validated, skipping validation.");
+            return true;
+        }
 
-            HttpResponse response = this.httpClient.execute(request);
+        log.log(5,"Validating access token at " + settings.validateEndpoint);
 
+        HttpUriRequest request = RequestBuilder.create("GET")
+                .setUri(settings.validateEndpoint)
+                .setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token)
+                .setHeader(HttpHeaders.ACCEPT, JSON_CONTENT_TYPE)
+                .setConfig(settings.requestConfig)
+                .build();
+
+        HttpResponse response = settings.httpClient.execute(request);
+
+        try {
             if (response.getStatusLine().getStatusCode() == STATUS_SUCCESS) {
                 JsonNode data = jsonParser.readTree(EntityUtils.toString(response.getEntity()));
                 String clientId = data.get("client").asText();
@@ -197,23 +651,61 @@ public class OAuthClient {
                 if (!this.clientId.equals(clientId)) {
                     throw new OAuthException("Token received for a client other than us.");
                 }
-            } else if (response.getStatusLine().getStatusCode() == STATUS_AUTHORIZATION_REQUIRED) {
-                this.accessToken = null;
 
+                this.validated = new Validation(token, settings.validateEndpoint, System.currentTimeMillis());
+                return true;
+            } else if (response.getStatusLine().getStatusCode() == STATUS_AUTHORIZATION_REQUIRED) {
                 if(newToken) {
                     throw new OAuthException("Newly acquired token is still not valid.");
-                } else {
-                    doTokenRequest();
                 }
+                return false;
             } else {
-                throw new HttpResponseException(response.getStatusLine().getStatusCode(), buildError(response));
+                throw new HttpResponseException(response.getStatusLine().getStatusCode(), buildError(response, log));
             }
-        } else {
-            log.log(5, "No validate endpoint exists, skipping validation.");
+        } finally {
+            release(response);
+        }
+    }
+
+    /**
+     * Clients are shared between steps, so a token fetched by a step without
+     * a validate endpoint, or validated at another one, is validated before
+     * a step with its own validate endpoint uses it.
+     *
+     * @return True if the settings have a validate endpoint, and the token
+     *         hasn't passed validation there within their validation
+     *         lifetime, nor is being validated there in the background
+     */
+    private boolean needsValidation(String token, Settings settings) {
+        if(settings.validateEndpoint == null) {
+            return false;
+        }
+
+        Validation validated = this.validated;
+        if(validated != null && validated.isCurrent(token, settings)) {
+            return false;
         }
+
+        Validation pending = this.pendingValidation;
+        return pending == null || !pending.isFor(token, settings);
     }
 
+    /**
+     * @return When the client was last asked for a token, in milliseconds
+     *         since the epoch, or when it was created if it never was
+     */
+    long getLastUsed() {
+        return this.lastUsed;
+    }
 
+    /**
+     * @return True if the token endpoint said when the token expires, and it
+     *         expires within {@link #EXPIRY_MARGIN}
+     */
+    boolean isExpired() {
+        long expiry = this.expiresAt;
+        return expiry != 0 && System.currentTimeMillis() >= expiry - EXPIRY_MARGIN;
+    }
 
     /**
      * Set the credentials to use with this client.
@@ -222,8 +714,6 @@ public class OAuthClient {
      * @param clientSecret
      */
     public void setCredentials(String clientId, String clientSecret) {
-        log.log(5, "Setting credentials to " + this.clientId + ":" + this.clientSecret);
-
         this.clientId = clientId;
         this.clientSecret = clientSecret;
     }
@@ -246,17 +736,149 @@ public class OAuthClient {
         this.validateEndpoint = validateEndpoint;
     }
 
+    /**
+     * Update the client secret and validate endpoint, for instance from the
+     * latest step configuration. A changed secret discards the current
+     * token, which was issued for the old one. Nothing is locked when
+     * nothing changed.
+     *
+     * @param clientSecret The client secret
+     * @param validateEndpoint Complete URI to the validate endpoint, or null
+     */
+    public void configure(String clientSecret, String validateEndpoint) {
+        if(Objects.equals(this.clientSecret, clientSecret) && Objects.equals(this.validateEndpoint, validateEndpoint)) {
+            return;
+        }
+
+        synchronized(this) {
+            boolean newSecret = !Objects.equals(this.clientSecret, clientSecret);
+
+            this.clientSecret = clientSecret;
+            this.validateEndpoint = validateEndpoint;
+
+            if(newSecret) {
+                this.invalidateAccessToken();
+            }
+        }
+    }
+
+    /**
+     * Send token and validate requests through the given client, for
+     * instance the pooled client of the step so the same SSL and proxy
+     * settings apply. The client is shared and never closed here. Like the
+     * other settings below, only used by calls that don't pass
+     * {@link Settings}.
+     *
+     * @param httpClient The client to use
+     */
+    public void setHttpClient(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Set how long to wait for the token and validate endpoints. The same
+     * limit applies to leasing a pooled connection, connecting and waiting
+     * for each packet of the response.
+     *
+     * @param timeout Timeout in milliseconds, or 0 to wait forever
+     */
+    public void setTimeout(int timeout) {
+        if(timeout != this.requestConfig.getSocketTimeout()) {
+            this.requestConfig = timeoutConfig(timeout);
+        }
+    }
+
+    /**
+     * Set how long a successful validation is trusted. Tokens are validated
+     * again on their next use once it has passed.
+     *
+     * @param validationTtl Lifetime in milliseconds, or 0 to trust a token
+     *                      for as long as it is used
+     */
+    public void setValidationTtl(long validationTtl) {
+        this.validationTtl = validationTtl;
+    }
+
+    /**
+     * Validate new tokens in the background, so the caller can use them
+     * right away. Once a token fails background validation, this client
+     * validates its tokens before use again.
+     *
+     * @param validateAsync True to validate in the background
+     */
+    public void setValidateAsync(boolean validateAsync) {
+        this.validateAsync = validateAsync;
+    }
+
+    /**
+     * Replace a token the server rejected. When several requests are rejected
+     * with the same token, the first caller fetches a new token and the
+     * others get that one instead of fetching their own.
+     *
+     * @param rejectedToken The token the server rejected, or null if unknown
+     * @return A new access token
+     *
+     * @throws HttpResponseException If an HTTP status code we don't handle is returned.
+     * @throws IOException
+     * @throws OAuthException If our token is not valid (or other OAuth protocol issues)
+     */
+    public String refreshAccessToken(String rejectedToken) throws HttpResponseException, IOException, OAuthException {
+        return this.refreshAccessToken(rejectedToken, SILENT);
+    }
+
+    /**
+     * As in refreshAccessToken(String), logging to the given logger. Clients
+     * are shared between steps, so callers pass the logger of their own step.
+     *
+     * @param rejectedToken The token the server rejected, or null if unknown
+     * @param log Logger of the calling step
+     * @return A new access token
+     */
+    public String refreshAccessToken(String rejectedToken, PluginLogger log) throws HttpResponseException, IOException, OAuthException {
+        return this.refreshAccessToken(rejectedToken, log, this.defaults());
+    }
+
+    /**
+     * As in refreshAccessToken(String, PluginLogger), with the settings of
+     * the calling step.
+     *
+     * @param rejectedToken The token the server rejected, or null if unknown
+     * @param log Logger of the calling step
+     * @param settings Settings of the calling step
+     * @return A new access token
+     */
+    public synchronized String refreshAccessToken(String rejectedToken, PluginLogger log, Settings settings)
+            throws HttpResponseException, IOException, OAuthException {
+        String current = this.accessToken;
+
+        if(current != null && rejectedToken != null && !current.equals(rejectedToken) && !this.isExpired()) {
+            log.log(5, "Access token was already refreshed.");
+            return current;
+        }
+
+        this.invalidateAccessToken(log);
+        return this.getAccessToken(log, settings);
+    }
+
     /**
      * Invalidate our current access token.
      */
     public void invalidateAccessToken() {
+        this.invalidateAccessToken(SILENT);
+    }
+
+    private synchronized void invalidateAccessToken(PluginLogger log) {
         log.log(5, "Invalidating access token.");
+        this.generation++;
         this.accessToken = null;
+        this.expiresAt = 0;
+        cancelRefresh();
     }
 
     /**
-     * Get our access token. If we don't have a token, attempt to get one. Note that this
-     * is synchronous.
+     * Get our access token. A current token is returned straight away. If we
+     * don't have a token, or it has expired, get a new one. Note that this is
+     * synchronous, and only one caller fetches a token at a time.
      *
      * @return The access token string.
      *
@@ -265,10 +887,47 @@ public class OAuthClient {
      * @throws OAuthException If our token is not valid (or other OAuth protocol issues)
      */
     public String getAccessToken() throws HttpResponseException, IOException, OAuthException {
-        if(this.accessToken == null) {
-            this.doTokenValidate();
+        return this.getAccessToken(SILENT);
+    }
+
+    /**
+     * As in getAccessToken(), logging to the given logger. Clients are shared
+     * between steps, so callers pass the logger of their own step.
+     *
+     * @param log Logger of the calling step
+     * @return The access token string.
+     */
+    public String getAccessToken(PluginLogger log) throws HttpResponseException, IOException, OAuthException {
+        return this.getAccessToken(log, this.defaults());
+    }
+
+    /**
+     * As in getAccessToken(PluginLogger), with the settings of the calling
+     * step. A new token is fetched and validated with these settings, and
+     * refreshed with them later.
+     *
+     * @param log Logger of the calling step
+     * @param settings Settings of the calling step
+     * @return The access token string.
+     */
+    public String getAccessToken(PluginLogger log, Settings settings) throws HttpResponseException, IOException, OAuthException {
+        this.lastUsed = System.currentTimeMillis();
+
+        String token = this.accessToken;
+        if(token != null && !this.isExpired() && !this.needsValidation(token, settings)) {
+            return token;
         }
 
-        return this.accessToken;
+        synchronized(this) {
+            if(this.accessToken != null && this.isExpired()) {
+                log.log(5, "Access token has expired.");
+                this.accessToken = null;
+            }
+            if(this.accessToken == null || this.needsValidation(this.accessToken, settings)) {
+                this.doTokenValidate(false, log, settings);
+            }
+
+            return this.accessToken;
+        }
     }
 }
@@ -0,0 +1,138 @@
+package edu.ohio.ais.rundeck.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of OAuth clients.
+ *
+ * Rundeck may create several instances of each plugin, and both plugin types
+ * authenticate the same way, so clients are kept here rather than per
+ * plugin instance. Every step using the same credentials against the same
+ * token endpoint shares one client and one access token, instead of each
+ * fetching its own.
+ *
+ * Clients are keyed by client ID, token endpoint and a fingerprint of the
+ * client secret. A step configured with a different secret for the same
+ * client ID gets its own client, so it can never use a token that was
+ * fetched with someone else's secret.
+ *
+ * Clients nobody asked for a token for in {@link #IDLE_EXPIRY} are dropped,
+ * and only the {@link #MAX_CLIENTS} most recently used are kept, so clients
+ * of jobs that no longer run don't stay around for the life of the server.
+ */
+public class OAuthClientRegistry {
+
+    static final long IDLE_EXPIRY = 60 * 60 * 1000;
+    static final int MAX_CLIENTS = 256;
+
+    /**
+     * Minimum milliseconds between sweeps for idle clients, while there are
+     * no more than {@link #MAX_CLIENTS}.
+     */
+    static final long SWEEP_INTERVAL = 60 * 1000;
+
+    private static final Map<String, OAuthClient> clients = new ConcurrentHashMap<>();
+    private static final AtomicLong lastSweep = new AtomicLong();
+
+    private OAuthClientRegistry() {
+    }
+
+    /**
+     * @return The shared clients, by {@link #key(String, String, String)}
+     */
+    public static Map<String, OAuthClient> getClients() {
+        return clients;
+    }
+
+    /**
+     * Build the registry key for a set of credentials.
+     *
+     * @param clientId The client ID
+     * @param tokenEndpoint Complete URI to the token endpoint
+     * @param clientSecret The client secret, or null
+     * @return clientId@tokenEndpoint, followed by the secret fingerprint
+     */
+    public static String key(String clientId, String tokenEndpoint, String clientSecret) {
+        String key = clientId + "@" + tokenEndpoint;
+        return clientSecret == null ? key : key + "#" + fingerprint(clientSecret);
+    }
+
+    /**
+     * @return The first 16 bytes of the SHA-256 digest of the secret, in
+     *         hex. Enough to tell secrets apart without keeping the secret
+     *         itself in the key.
+     */
+    static String fingerprint(String secret) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+
+        StringBuilder hex = new StringBuilder(32);
+        for(int i = 0; i < 16; i++) {
+            hex.append(String.format("%02x", digest[i]));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Drop clients that have been idle for longer than {@link #IDLE_EXPIRY},
+     * then the least recently used ones while there are more than
+     * {@link #MAX_CLIENTS}. Cheap to call on every use: it only sweeps once
+     * per {@link #SWEEP_INTERVAL}, unless there are too many clients.
+     */
+    public static void evictIdle() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+
+        if(clients.size() <= MAX_CLIENTS && (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now))) {
+            return;
+        }
+
+        for(Map.Entry<String, OAuthClient> entry : clients.entrySet()) {
+            if(now - entry.getValue().getLastUsed() > IDLE_EXPIRY) {
+                remove(entry.getKey(), entry.getValue());
+            }
+        }
+
+        int excess = clients.size() - MAX_CLIENTS;
+        if(excess > 0) {
+            List<Map.Entry<String, OAuthClient>> entries = new ArrayList<>(clients.entrySet());
+            entries.sort(Comparator.comparingLong(entry -> entry.getValue().getLastUsed()));
+            for(int i = 0; i < excess && i < entries.size(); i++) {
+                remove(entries.get(i).getKey(), entries.get(i).getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove a client, unless it was replaced meanwhile, and stop its
+     * background refresh.
+     */
+    private static void remove(String key, OAuthClient client) {
+        if(clients.remove(key, client)) {
+            client.invalidateAccessToken();
+        }
+    }
+
+    /**
+     * Forget every client and stop their background refreshes. Steps run
+     * after this fetch new tokens.
+     */
+    public static void clear() {
+        for(Map.Entry<String, OAuthClient> entry : clients.entrySet()) {
+            remove(entry.getKey(), entry.getValue());
+        }
+    }
+}
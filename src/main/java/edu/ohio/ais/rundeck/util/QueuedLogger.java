@@ -0,0 +1,69 @@
+package edu.ohio.ais.rundeck.util;
+
+import com.dtolabs.rundeck.plugins.PluginLogger;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Logger that queues messages so they can be written later from another
+ * thread.
+ *
+ * Rundeck binds log output to the thread running the step, so requests
+ * executed on a background thread log through this queue and the step
+ * thread drains it into the real plugin logger.
+ */
+public class QueuedLogger implements PluginLogger {
+
+    private static class Entry {
+        final String eventType;
+        final int level;
+        final String message;
+        final Map eventMeta;
+
+        Entry(String eventType, int level, String message, Map eventMeta) {
+            this.eventType = eventType;
+            this.level = level;
+            this.message = message;
+            this.eventMeta = eventMeta;
+        }
+    }
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void log(int level, String message) {
+        entries.add(new Entry(null, level, message, null));
+    }
+
+    @Override
+    public void log(int level, String message, Map eventMeta) {
+        entries.add(new Entry(null, level, message, eventMeta));
+    }
+
+    @Override
+    public void event(String eventType, String message, Map eventMeta) {
+        entries.add(new Entry(eventType, 0, message, eventMeta));
+    }
+
+    /**
+     * Write every queued message to the given logger, in order.
+     *
+     * @param target The logger bound to the current thread.
+     */
+    @SuppressWarnings("unchecked")
+    public void drainTo(PluginLogger target) {
+        Entry entry;
+
+        while((entry = entries.poll()) != null) {
+            if(entry.eventType != null) {
+                target.event(entry.eventType, entry.message, entry.eventMeta);
+            } else if(entry.eventMeta != null) {
+                target.log(entry.level, entry.message, entry.eventMeta);
+            } else {
+                target.log(entry.level, entry.message);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package edu.ohio.ais.rundeck.util;
+
+import com.dtolabs.rundeck.core.execution.workflow.steps.StepException;
+import com.dtolabs.rundeck.core.execution.workflow.steps.StepFailureReason;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sources of a request body, and parsing of the multipart parts option.
+ *
+ * Kept apart from the step so the secret bundle can find the keys a body
+ * reads without depending on the plugin classes.
+ */
+public class RequestBody {
+    public static final String BODY_TEXT = "Text";
+    public static final String BODY_FILE = "File";
+    public static final String BODY_KEY_STORAGE = "Key Storage";
+    public static final String BODY_MULTIPART = "Multipart";
+
+    private static final ThreadLocal<Yaml> yaml = new ThreadLocal<Yaml>() {
+        @Override
+        protected Yaml initialValue() {
+            return new Yaml(new SafeConstructor(new LoaderOptions()));
+        }
+    };
+
+    private RequestBody() {
+    }
+
+    /**
+     * @param spec The rendered multipart parts option
+     * @return The key storage paths of the parts read from key storage
+     * @throws StepException If the parts can't be parsed
+     */
+    public static List<String> getPartKeys(String spec) throws StepException {
+        List<String> keys = new ArrayList<>();
+        for(Map<?, ?> part : parseParts(spec)) {
+            String key = partOption(part, "keyStorage");
+            if(key != null) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Parse and check the multipart parts option, without opening any of
+     * the part contents.
+     *
+     * @param spec The rendered multipart parts option, a JSON or YAML list
+     * @return The parts, each with a name and one of value, file or keyStorage
+     * @throws StepException If the parts can't be parsed or a part is incomplete
+     */
+    public static List<Map<?, ?>> parseParts(String spec) throws StepException {
+        Object parsed;
+        try {
+            parsed = yaml.get().load(spec);
+        } catch (Exception e) {
+            throw new StepException("Error parsing the multipart parts: " + e.getMessage(), e, StepFailureReason.ConfigurationFailure);
+        }
+
+        if(!(parsed instanceof List)) {
+            throw new StepException("Multipart parts must be a list.", StepFailureReason.ConfigurationFailure);
+        }
+
+        List<Map<?, ?>> parts = new ArrayList<>();
+
+        for(Object item : (List<?>) parsed) {
+            if(!(item instanceof Map)) {
+                throw new StepException("Multipart part " + (parts.size() + 1) + " must be a map.", StepFailureReason.ConfigurationFailure);
+            }
+
+            Map<?, ?> part = (Map<?, ?>) item;
+            int sources = (part.get("value") != null ? 1 : 0) + (part.get("file") != null ? 1 : 0)
+                    + (part.get("keyStorage") != null ? 1 : 0);
+            if(part.get("name") == null || sources != 1) {
+                throw new StepException("Multipart part " + (parts.size() + 1) + " needs a name and one of value, file or keyStorage.",
+                        StepFailureReason.ConfigurationFailure);
+            }
+
+            parts.add(part);
+        }
+
+        return parts;
+    }
+
+    /**
+     * @param part A part returned by {@link #parseParts(String)}
+     * @param key The part option
+     * @return The option as a string, or null if the part doesn't have it
+     */
+    public static String partOption(Map<?, ?> part, String key) {
+        Object value = part.get(key);
+        return value != null ? value.toString() : null;
+    }
+}
@@ -0,0 +1,131 @@
+package edu.ohio.ais.rundeck.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled form of an expected response code expression such as
+ * "200,204-206,2xx".
+ *
+ * The expression is parsed once into a lookup table over all three digit
+ * status codes, so matching a response is a single bit test. Compiled
+ * matchers are cached by expression string.
+ */
+public class ResponseCodeMatcher {
+
+    private static final int MAX_CODE = 999;
+
+    private static final LruCache<String, ResponseCodeMatcher> cache = new LruCache<>(256);
+
+    private static final ResponseCodeMatcher UNDEFINED = new ResponseCodeMatcher(null, new BitSet(0), Collections.<String>emptyList());
+
+    private final String expression;
+    private final BitSet codes;
+    private final List<String> rejectedEntries;
+
+    private ResponseCodeMatcher(String expression, BitSet codes, List<String> rejectedEntries) {
+        this.expression = expression;
+        this.codes = codes;
+        this.rejectedEntries = rejectedEntries;
+    }
+
+    /**
+     * Get the compiled matcher for an expression. Entries that are not an
+     * exact code, a range or a wildcard group are ignored and kept on the
+     * matcher, see {@link #getRejectedEntries()}, so every caller can warn
+     * about them even when the matcher comes from the cache.
+     *
+     * @param expression Comma separated codes, ranges (200-206) and groups (2xx)
+     * @return The matcher. Blank expressions give a matcher that is not defined.
+     */
+    public static ResponseCodeMatcher compile(String expression) {
+        if(expression == null || expression.trim().isEmpty()) {
+            return UNDEFINED;
+        }
+
+        ResponseCodeMatcher matcher = cache.get(expression);
+
+        if(matcher == null) {
+            BitSet codes = new BitSet(MAX_CODE + 1);
+            List<String> rejected = new ArrayList<>();
+
+            for(String entry : expression.split(",")) {
+                entry = entry.trim();
+
+                if(!entry.isEmpty() && !addEntry(entry, codes)) {
+                    rejected.add(entry);
+                }
+            }
+
+            matcher = new ResponseCodeMatcher(expression, codes, Collections.unmodifiableList(rejected));
+            cache.put(expression, matcher);
+        }
+
+        return matcher;
+    }
+
+    private static boolean addEntry(String entry, BitSet codes) {
+        if(entry.length() == 3 && isCode(entry, 0)) {
+            codes.set(code(entry, 0));
+            return true;
+        }
+
+        if(entry.length() == 7 && entry.charAt(3) == '-' && isCode(entry, 0) && isCode(entry, 4)) {
+            int start = code(entry, 0);
+            int end = code(entry, 4);
+            if(start <= end) {
+                codes.set(start, end + 1);
+            }
+            return true;
+        }
+
+        if(entry.length() == 3 && isDigit(entry.charAt(0)) && entry.charAt(1) == 'x' && entry.charAt(2) == 'x') {
+            int hundreds = (entry.charAt(0) - '0') * 100;
+            codes.set(hundreds, hundreds + 100);
+            return true;
+        }
+
+        return false;
+    }
+
+    private static boolean isCode(String entry, int offset) {
+        return isDigit(entry.charAt(offset)) && isDigit(entry.charAt(offset + 1)) && isDigit(entry.charAt(offset + 2));
+    }
+
+    private static int code(String entry, int offset) {
+        return (entry.charAt(offset) - '0') * 100 + (entry.charAt(offset + 1) - '0') * 10 + (entry.charAt(offset + 2) - '0');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return True if an expression was given, even if none of its entries
+     *         were valid.
+     */
+    public boolean isDefined() {
+        return expression != null;
+    }
+
+    /**
+     * @param actualCode The HTTP status code of the response
+     * @return True if the code matches any entry of the expression
+     */
+    public boolean matches(int actualCode) {
+        return actualCode >= 0 && actualCode <= MAX_CODE && codes.get(actualCode);
+    }
+
+    /**
+     * @return The malformed entries of the expression, which are ignored
+     */
+    public List<String> getRejectedEntries() {
+        return rejectedEntries;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+}
@@ -3,16 +3,34 @@ package edu.ohio.ais.rundeck.util;
 import com.dtolabs.rundeck.core.execution.ExecutionContext;
 import com.dtolabs.rundeck.core.execution.proxy.DefaultSecretBundle;
 import com.dtolabs.rundeck.core.execution.proxy.SecretBundle;
+import com.dtolabs.rundeck.core.execution.workflow.steps.StepException;
 import com.dtolabs.rundeck.core.storage.ResourceMeta;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.function.UnaryOperator;
 
 public class SecretBundleUtil {
 
-    public static List<String> getListSecrets(Map<String, Object> configuration) {
+    /**
+     * Largest key, in bytes, put in a secret bundle. Bundled keys are held
+     * in memory until the runner receives them, so request bodies larger
+     * than this should be sent from a file instead.
+     */
+    static final int MAX_SECRET_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * @param configuration The step configuration
+     * @param renderer Replaces data references in the body storage path, the
+     *                 same way the step renders it
+     * @return The key storage paths the step reads
+     */
+    public static List<String> getListSecrets(Map<String, Object> configuration, UnaryOperator<String> renderer) {
         List<String> listSecretPath = new ArrayList<>();
         String passwordPath = (String)configuration.get("password");
 
@@ -20,10 +38,53 @@ public class SecretBundleUtil {
             listSecretPath.add(passwordPath);
         }
 
+        listSecretPath.addAll(getBodyStoragePaths(configuration, renderer));
+
         return listSecretPath;
     }
 
-    public static SecretBundle getSecrets(ExecutionContext context,  Map<String, Object> configuration){
+    /**
+     * @return The key storage paths of the request body: the body key, or
+     *         the keys of multipart parts read from key storage
+     */
+    private static List<String> getBodyStoragePaths(Map<String, Object> configuration, UnaryOperator<String> renderer) {
+        Object bodySource = configuration.get("bodySource");
+
+        if(RequestBody.BODY_KEY_STORAGE.equals(bodySource)) {
+            String bodyPath = render(configuration, "bodyStoragePath", renderer);
+            return bodyPath!=null ? Collections.singletonList(bodyPath) : Collections.emptyList();
+        }
+
+        if(RequestBody.BODY_MULTIPART.equals(bodySource)) {
+            String parts = render(configuration, "multipartParts", renderer);
+            if(parts!=null) {
+                try {
+                    return RequestBody.getPartKeys(parts);
+                } catch (StepException e) {
+                    // The step reports the malformed parts when it runs.
+                }
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    private static String render(Map<String, Object> configuration, String option, UnaryOperator<String> renderer) {
+        String value = (String)configuration.get(option);
+        if(value==null || value.isEmpty()) {
+            return null;
+        }
+        return DataTemplate.compile(value).render(renderer);
+    }
+
+    /**
+     * @param context The execution context, for key storage access
+     * @param configuration The step configuration
+     * @param renderer Replaces data references in the body storage path, the
+     *                 same way the step renders it
+     * @return The contents of the keys the step reads
+     */
+    public static SecretBundle getSecrets(ExecutionContext context, Map<String, Object> configuration, UnaryOperator<String> renderer){
         DefaultSecretBundle secretBundle = new DefaultSecretBundle();
         String passwordPath = (String)configuration.get("password");
 
@@ -33,17 +94,69 @@ public class SecretBundleUtil {
                 secretBundle.addSecret(passwordPath, content);
             }
         }
+
+        for(String bodyPath : getBodyStoragePaths(configuration, renderer)){
+            byte[] content = SecretBundleUtil.getStoragePassword(context,bodyPath);
+            if(content!=null){
+                secretBundle.addSecret(bodyPath, content);
+            }
+        }
         return secretBundle;
     }
 
     public static byte[] getStoragePassword(ExecutionContext context, String path){
-        try(ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream()) {
-            ResourceMeta contents = context.getStorageTree().getResource(path).getContents();
-            contents.writeContent(byteArrayOutputStream);
-            return byteArrayOutputStream.toByteArray();
+        try {
+            return readContent(path, context.getStorageTree().getResource(path).getContents());
         } catch (Exception e) {
             context.getExecutionLogger().log(0, e.getMessage());
             return null;
         }
     }
+
+    /**
+     * Read a key from its stream into an array of its declared length, so
+     * the content is copied once instead of growing a buffer and copying it
+     * again.
+     *
+     * @throws IOException If the key is larger than {@link #MAX_SECRET_SIZE}
+     */
+    private static byte[] readContent(String path, ResourceMeta contents) throws IOException {
+        long length = contents.getContentLength();
+        if(length > MAX_SECRET_SIZE) {
+            throw tooLarge(path);
+        }
+
+        try(InputStream in = contents.getInputStream()) {
+            if(length < 0) {
+                byte[] content = in.readNBytes(MAX_SECRET_SIZE + 1);
+                if(content.length > MAX_SECRET_SIZE) {
+                    throw tooLarge(path);
+                }
+                return content;
+            }
+
+            byte[] content = new byte[(int) length];
+            int read = in.readNBytes(content, 0, content.length);
+            if(read < content.length) {
+                return Arrays.copyOf(content, read);
+            }
+
+            // The declared length may be short, keep anything after it.
+            byte[] rest = in.readNBytes(MAX_SECRET_SIZE + 1 - content.length);
+            if(rest.length == 0) {
+                return content;
+            }
+            if(content.length + rest.length > MAX_SECRET_SIZE) {
+                throw tooLarge(path);
+            }
+            byte[] all = Arrays.copyOf(content, content.length + rest.length);
+            System.arraycopy(rest, 0, all, content.length, rest.length);
+            return all;
+        }
+    }
+
+    private static IOException tooLarge(String path) {
+        return new IOException("Key " + path + " is larger than " + (MAX_SECRET_SIZE / (1024 * 1024)) +
+                " MB and can't be sent to a runner, send large request bodies from a file instead.");
+    }
 }
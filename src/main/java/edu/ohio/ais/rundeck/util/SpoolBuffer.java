@@ -0,0 +1,166 @@
+package edu.ohio.ais.rundeck.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Buffer for response content that has to be read more than once.
+ *
+ * Content is kept in memory up to a threshold and spilled to a temporary
+ * file past it, so large bodies don't need to fit in the heap. Write the
+ * content, close the buffer, then read it back as many times as needed with
+ * {@link #openInputStream()}. Call {@link #discard()} when done to remove
+ * any temporary file.
+ */
+public class SpoolBuffer extends OutputStream {
+
+    /**
+     * Default number of bytes kept in memory before spilling to disk.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    private final int threshold;
+
+    private byte[] buffer = new byte[256];
+    private int count;
+    private long size;
+
+    private Path file;
+    private OutputStream fileOut;
+
+    /**
+     * @param threshold Number of bytes kept in memory before spilling to disk
+     */
+    public SpoolBuffer(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public SpoolBuffer() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Read a stream into a new buffer. The stream is not closed.
+     *
+     * @param in The content to buffer
+     * @param threshold Number of bytes kept in memory before spilling to disk
+     * @return The closed buffer, ready to read
+     * @throws IOException If the stream could not be read or spilled
+     */
+    public static SpoolBuffer of(InputStream in, int threshold) throws IOException {
+        SpoolBuffer spool = new SpoolBuffer(threshold);
+
+        try {
+            byte[] chunk = new byte[8192];
+            int read;
+
+            while((read = in.read(chunk)) != -1) {
+                spool.write(chunk, 0, read);
+            }
+            spool.close();
+        } catch (IOException e) {
+            spool.discard();
+            throw e;
+        }
+
+        return spool;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(fileOut == null && count + len > threshold) {
+            spill();
+        }
+
+        if(fileOut != null) {
+            fileOut.write(b, off, len);
+        } else {
+            if(count + len > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, count + len), Math.max(threshold, count + len)));
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        file = Files.createTempFile("http-step-", ".spool");
+        fileOut = Files.newOutputStream(file);
+        fileOut.write(buffer, 0, count);
+        buffer = null;
+        count = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    /**
+     * Finish writing. The content can be read once the buffer is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if(fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * @return A new stream over the buffered content
+     * @throws IOException If the spilled content could not be opened
+     */
+    public InputStream openInputStream() throws IOException {
+        if(file != null) {
+            return Files.newInputStream(file);
+        }
+        return new ByteArrayInputStream(buffer, 0, count);
+    }
+
+    /**
+     * @return Number of bytes written
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return True if the content was spilled to a temporary file
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Release the buffered content, deleting any temporary file.
+     */
+    public void discard() {
+        try {
+            close();
+            if(file != null) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file = null;
+        fileOut = null;
+        buffer = new byte[0];
+        count = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,132 @@
+package edu.ohio.ais.rundeck.util;
+
+import com.dtolabs.rundeck.plugins.PluginLogger;
+
+import java.io.Writer;
+
+/**
+ * Writer that sends text to the plugin logger as it arrives, a line at a
+ * time, instead of once the whole response has been read.
+ *
+ * Complete lines are held back until the flush interval has passed since
+ * the last log call, then logged together, so a fast stream doesn't produce
+ * a log event per line. Lines are only logged when more text arrives or the
+ * writer is closed, because Rundeck only accepts log output from the thread
+ * running the step.
+ *
+ * The limit is in bytes of the text encoded as UTF-8, like
+ * {@link TruncatingWriter}.
+ */
+public class StreamingLogWriter extends Writer {
+
+    /**
+     * Text without a line break is logged once it reaches this length.
+     */
+    static final int MAX_PENDING = 64 * 1024;
+
+    private final PluginLogger log;
+    private final int level;
+    private final long flushInterval;
+    private final long maxBytes;
+
+    private final StringBuilder pending = new StringBuilder();
+    private long lastFlush;
+    private long kept;
+    private boolean full;
+    private long omitted;
+
+    /**
+     * @param log Logger bound to the step thread
+     * @param level Log level for the text
+     * @param flushInterval Minimum milliseconds between log calls
+     * @param maxBytes Maximum number of bytes to log, or a negative value
+     *                 for no limit
+     */
+    public StreamingLogWriter(PluginLogger log, int level, long flushInterval, long maxBytes) {
+        this.log = log;
+        this.level = level;
+        this.flushInterval = flushInterval;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        if(maxBytes >= 0) {
+            len = limit(cbuf, off, len);
+        }
+
+        pending.append(cbuf, off, len);
+
+        if(pending.length() >= MAX_PENDING) {
+            emit(pending.length());
+        } else if(System.currentTimeMillis() - lastFlush >= flushInterval) {
+            int end = pending.lastIndexOf("\n");
+            if(end >= 0) {
+                emit(end + 1);
+            }
+        }
+    }
+
+    /**
+     * Count the bytes of the text, and cut it once the limit is reached.
+     * Everything after the cut is left out, even text that would fit.
+     *
+     * @return The number of characters to keep
+     */
+    private int limit(char[] cbuf, int off, int len) {
+        int keep = 0;
+
+        while(!full && keep < len) {
+            char c = cbuf[off + keep];
+            int bytes = TruncatingWriter.utf8Length(c);
+            // Keep surrogate pairs together.
+            int needed = Character.isHighSurrogate(c) ? 2 * bytes : bytes;
+
+            if(kept + needed > maxBytes) {
+                full = true;
+                break;
+            }
+
+            kept += bytes;
+            keep++;
+        }
+
+        for(int i = keep; i < len; i++) {
+            omitted += TruncatingWriter.utf8Length(cbuf[off + i]);
+        }
+
+        return keep;
+    }
+
+    private void emit(int length) {
+        int end = length;
+        if(end > 0 && pending.charAt(end - 1) == '\n') {
+            end--;
+        }
+        if(end > 0 && pending.charAt(end - 1) == '\r') {
+            end--;
+        }
+
+        log.log(level, pending.substring(0, end));
+        pending.delete(0, length);
+        lastFlush = System.currentTimeMillis();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Log any text still held back.
+     */
+    @Override
+    public void close() {
+        if(pending.length() > 0) {
+            emit(pending.length());
+        }
+        if(omitted > 0) {
+            log.log(level, "... [" + omitted + " bytes omitted]");
+            omitted = 0;
+        }
+    }
+}
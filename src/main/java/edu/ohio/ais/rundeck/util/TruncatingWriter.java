@@ -0,0 +1,180 @@
+package edu.ohio.ais.rundeck.util;
+
+import java.io.Writer;
+
+/**
+ * Writer that keeps only the start and the end of what is written to it.
+ *
+ * Half of the limit is kept from the start of the text and the other half
+ * from the end, in a ring buffer, so memory use is bounded by the limit no
+ * matter how much is written. The text in between is replaced by a marker
+ * saying how much was left out.
+ *
+ * The limit is in bytes of the text encoded as UTF-8, the size it takes in
+ * the execution log, and the text is never cut inside a character.
+ */
+public class TruncatingWriter extends Writer {
+
+    /**
+     * Largest buffer allocated up front from a size hint. Bigger text grows
+     * the buffer as it is written.
+     */
+    private static final int MAX_PRESIZE = 8 * 1024 * 1024;
+
+    private final StringBuilder head;
+    private final long headSize;
+    private long headBytes;
+    private boolean headFull;
+
+    private final char[] tail;
+    private final int tailSize;
+    private int tailStart;
+    private int tailLength;
+    private int tailBytes;
+
+    private long written;
+
+    /**
+     * @param maxBytes Maximum number of bytes to keep, or a negative value to
+     *                 keep everything
+     */
+    public TruncatingWriter(int maxBytes) {
+        this(maxBytes, -1);
+    }
+
+    /**
+     * @param maxBytes Maximum number of bytes to keep, or a negative value to
+     *                 keep everything
+     * @param sizeHint Expected number of bytes, used to size the buffer up
+     *                 front, or a negative value if unknown
+     */
+    public TruncatingWriter(int maxBytes, long sizeHint) {
+        if(maxBytes < 0) {
+            this.headSize = Long.MAX_VALUE;
+            this.tailSize = 0;
+        } else {
+            this.headSize = maxBytes - maxBytes / 2;
+            this.tailSize = maxBytes / 2;
+        }
+        // Every character takes at least a byte.
+        this.tail = new char[tailSize];
+
+        int capacity = sizeHint < 0 ? 16 : (int) Math.min(Math.min(sizeHint, headSize), MAX_PRESIZE);
+        this.head = new StringBuilder(capacity);
+    }
+
+    /**
+     * @return Number of bytes the character takes in UTF-8. Each half of a
+     *         surrogate pair counts for two of the pair's four bytes.
+     */
+    static int utf8Length(char c) {
+        if(c < 0x80) {
+            return 1;
+        }
+        if(c < 0x800 || Character.isSurrogate(c)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        int end = off + len;
+
+        while(!headFull && off < end) {
+            char c = cbuf[off];
+            int bytes = utf8Length(c);
+            // Keep surrogate pairs together.
+            int needed = Character.isHighSurrogate(c) ? 2 * bytes : bytes;
+
+            if(headBytes + needed > headSize) {
+                headFull = true;
+                break;
+            }
+
+            head.append(c);
+            headBytes += bytes;
+            written += bytes;
+            off++;
+        }
+
+        if(off == end) {
+            return;
+        }
+
+        // Only the last tail.length characters can survive.
+        int skip = Math.max(0, end - off - tail.length);
+        for(int i = 0; i < skip; i++) {
+            written += utf8Length(cbuf[off + i]);
+        }
+        off += skip;
+
+        for(; off < end; off++) {
+            char c = cbuf[off];
+            int bytes = utf8Length(c);
+            written += bytes;
+
+            while(tailLength > 0 && tailBytes + bytes > tailSize) {
+                dropTail();
+            }
+            if(bytes > tailSize) {
+                continue;
+            }
+
+            tail[(tailStart + tailLength) % tail.length] = c;
+            tailLength++;
+            tailBytes += bytes;
+
+            // Never start the end of the text with half a character.
+            while(tailLength > 0 && Character.isLowSurrogate(tail[tailStart])) {
+                dropTail();
+            }
+        }
+    }
+
+    private void dropTail() {
+        tailBytes -= utf8Length(tail[tailStart]);
+        tailStart = (tailStart + 1) % tail.length;
+        tailLength--;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return True if part of the text was left out
+     */
+    public boolean isTruncated() {
+        return written > headBytes + tailBytes;
+    }
+
+    /**
+     * @return Total number of bytes written, encoded as UTF-8
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return The kept text, with a marker in place of any text left out
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(head.length() + tailLength + 64).append(head);
+
+        if(isTruncated()) {
+            text.append("\n... [").append(written - headBytes - tailBytes).append(" bytes omitted] ...\n");
+        }
+
+        for(int i = 0; i < tailLength; i++) {
+            text.append(tail[(tailStart + i) % tail.length]);
+        }
+
+        return text.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package edu.ohio.ais.rundeck.util;
+
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.XMLEvent;
+import java.io.InputStream;
+import java.io.Writer;
+
+/**
+ * Pretty prints XML as a stream of StAX events, so memory use doesn't depend
+ * on the size of the document.
+ *
+ * Elements are indented by two spaces per level and surrounding whitespace
+ * is trimmed from text. Elements that only contain text stay on one line.
+ * DTDs are not loaded and external entities are not resolved.
+ */
+public final class XmlFormatter {
+
+    private static final String INDENT = "  ";
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private XmlFormatter() {
+    }
+
+    /**
+     * Check that the input is well formed XML without keeping any of it.
+     *
+     * @param in The XML to check, not closed
+     * @return True if the whole document could be parsed
+     */
+    public static boolean isWellFormed(InputStream in) {
+        XMLEventReader reader = null;
+
+        try {
+            reader = inputFactory.createXMLEventReader(in);
+            while(reader.hasNext()) {
+                reader.nextEvent();
+            }
+            return true;
+        } catch (XMLStreamException | RuntimeException e) {
+            return false;
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Reformat an XML document. Output is written as the input is parsed, so
+     * callers that need all-or-nothing output should check the input with
+     * {@link #isWellFormed(InputStream)} first.
+     *
+     * @param in The XML to format, not closed
+     * @param out Receives the formatted XML, flushed but not closed
+     * @throws XMLStreamException If the input is not well formed
+     */
+    public static void format(InputStream in, Writer out) throws XMLStreamException {
+        XMLEventReader reader = inputFactory.createXMLEventReader(in);
+        XMLEventWriter writer = outputFactory.createXMLEventWriter(out);
+
+        try {
+            int depth = 0;
+            boolean started = false;
+            // True right after a start tag or text, so the next end tag
+            // stays on the same line.
+            boolean inline = false;
+
+            while(reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+
+                switch(event.getEventType()) {
+                    case XMLStreamConstants.START_DOCUMENT:
+                        writer.add(event);
+                        started = true;
+                        break;
+                    case XMLStreamConstants.START_ELEMENT:
+                        newLine(writer, depth, started);
+                        writer.add(event);
+                        depth++;
+                        started = true;
+                        inline = true;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        depth--;
+                        if(!inline) {
+                            newLine(writer, depth, true);
+                        }
+                        writer.add(event);
+                        inline = false;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        Characters characters = event.asCharacters();
+                        String text = characters.getData().trim();
+                        if(!text.isEmpty()) {
+                            writer.add(characters.isCData() ? eventFactory.createCData(text) : eventFactory.createCharacters(text));
+                            inline = true;
+                        }
+                        break;
+                    case XMLStreamConstants.SPACE:
+                        break;
+                    case XMLStreamConstants.END_DOCUMENT:
+                        writer.add(event);
+                        writer.add(eventFactory.createSpace("\n"));
+                        break;
+                    default:
+                        // Comments, processing instructions and the DTD
+                        newLine(writer, depth, started);
+                        writer.add(event);
+                        started = true;
+                        inline = false;
+                        break;
+                }
+            }
+
+            writer.flush();
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static void newLine(XMLEventWriter writer, int depth, boolean started) throws XMLStreamException {
+        if(!started) {
+            return;
+        }
+
+        StringBuilder space = new StringBuilder(1 + depth * INDENT.length()).append('\n');
+        for(int i = 0; i < depth; i++) {
+            space.append(INDENT);
+        }
+        writer.add(eventFactory.createSpace(space.toString()));
+    }
+
+    private static void close(XMLEventReader reader) {
+        if(reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ignored) {
+                // nothing left to release
+            }
+        }
+    }
+}
@@ -1,16 +1,48 @@
 package edu.ohio.ais.rundeck;
 
+import com.dtolabs.rundeck.core.execution.workflow.steps.StepException;
+import com.dtolabs.rundeck.core.execution.workflow.steps.StepFailureReason;
 import com.dtolabs.rundeck.plugins.PluginLogger;
+import edu.ohio.ais.rundeck.util.AtomicFile;
+import edu.ohio.ais.rundeck.util.DataTemplate;
+import edu.ohio.ais.rundeck.util.MultipartEntity;
+import edu.ohio.ais.rundeck.util.ResponseCodeMatcher;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import static edu.ohio.ais.rundeck.HttpBuilder.*;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -153,6 +185,24 @@ public class HttpBuilderTest {
         verifyZeroInteractions(request);
     }
 
+    @Test
+    public void compileHeaders_yamlHeaders_parsedInOrder() {
+        Header[] headers = compileHeaders("X-Custom: foo\nX-Other: 1");
+
+        assertEquals(2, headers.length);
+        assertEquals("X-Custom", headers[0].getName());
+        assertEquals("1", headers[1].getValue());
+    }
+
+    @Test
+    public void compileHeaders_leadingWhitespaceJson_parsedAsJson() {
+        Header[] headers = compileHeaders("  {\"X-Custom\": \"foo\"}");
+
+        assertEquals(1, headers.length);
+        assertEquals("X-Custom", headers[0].getName());
+        assertEquals("foo", headers[0].getValue());
+    }
+
     @Test
     public void headerValueToString_wholeNumberDouble_emitsIntegerString() {
         // Gson parses all JSON numbers as Double by default; ensure that a
@@ -170,4 +220,334 @@ public class HttpBuilderTest {
         assertEquals("1.5", headerValueToString(1.5));
     }
 
+    @Test
+    public void getHttpClient_sameTransportSettings_reusesPooledClient() throws Exception {
+        Map<String, Object> options = new HashMap<>();
+        options.put("sslVerify", "true");
+
+        assertSame(builder.getHttpClient(options), builder.getHttpClient(new HashMap<>(options)));
+    }
+
+    @Test
+    public void getHttpClient_differentTransportSettings_usesSeparateClients() throws Exception {
+        builder.setLog(mock(PluginLogger.class));
+        Map<String, Object> verified = new HashMap<>();
+        Map<String, Object> unverified = new HashMap<>();
+        unverified.put("sslVerify", "false");
+
+        assertNotSame(builder.getHttpClient(verified), builder.getHttpClient(unverified));
+    }
+
+    @Test
+    public void stepConfig_sameOptions_compiledOnce() throws Exception {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", "http://localhost/");
+        options.put("method", "GET");
+        options.put("timeout", "1000");
+
+        HttpStepConfig config = HttpStepConfig.of(options);
+        assertSame(config, HttpStepConfig.of(new HashMap<>(options)));
+        assertEquals(1000, config.getTimeout());
+    }
+
+    @Test
+    public void stepConfig_secretsAreNotPartOfTheCompiledConfig() throws Exception {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", "http://localhost/secrets");
+        options.put("method", "GET");
+        options.put("password", "first");
+
+        Map<String, Object> otherPassword = new HashMap<>(options);
+        otherPassword.put("password", "second");
+
+        assertSame(HttpStepConfig.of(options), HttpStepConfig.of(otherPassword));
+        assertEquals("second", HttpStepConfig.getPassword(otherPassword));
+    }
+
+    @Test
+    public void stepConfig_headersAndBodyAreCompiledForEachExecution() throws Exception {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", "http://localhost/content");
+        options.put("method", "POST");
+        options.put("headers", "Authorization: Bearer first");
+        options.put("body", "{\"token\":\"first\"}");
+
+        Map<String, Object> otherContent = new HashMap<>(options);
+        otherContent.put("headers", "Authorization: Bearer second");
+        otherContent.put("body", "{\"token\":\"second\"}");
+
+        HttpStepConfig first = HttpStepConfig.of(options);
+        HttpStepConfig second = HttpStepConfig.of(otherContent);
+
+        assertEquals("Bearer first", first.getParsedHeaders()[0].getValue());
+        assertEquals("Bearer second", second.getParsedHeaders()[0].getValue());
+        assertEquals("{\"token\":\"second\"}", second.getBody());
+        assertNotSame(first, HttpStepConfig.of(new HashMap<>(options)));
+    }
+
+    @Test
+    public void stepConfig_warningsAreLoggedByEveryExecution() throws Exception {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", "http://localhost/warnings");
+        options.put("statusOnly", "true");
+        options.put("printResponse", "true");
+        PluginLogger first = mock(PluginLogger.class);
+        PluginLogger second = mock(PluginLogger.class);
+
+        HttpStepConfig.of(options, first);
+        HttpStepConfig.of(new HashMap<>(options), second);
+
+        verify(first).log(1, "Warning: The response is not printed when checking the status only.");
+        verify(second).log(1, "Warning: The response is not printed when checking the status only.");
+    }
+
+    @Test
+    public void template_rendersReferencesBetweenLiterals() {
+        DataTemplate template = DataTemplate.compile("{\"job\":\"${job.name}\",\"host\":\"${node.hostname}\"}");
+
+        assertTrue(template.isNodeDependent());
+        assertEquals("{\"job\":\"deploy\",\"host\":\"${node.hostname}\"}",
+                template.render(reference -> reference.equals("${job.name}") ? "deploy" : reference));
+    }
+
+    @Test
+    public void template_reusesRenderingWhenNotNodeDependent() {
+        DataTemplate template = DataTemplate.compile("{\"job\":\"${job.name}\"}");
+
+        byte[] first = template.renderBytes(reference -> "deploy");
+        assertSame(first, template.renderBytes(reference -> "deploy"));
+        assertEquals("{\"job\":\"other\"}", new String(template.renderBytes(reference -> "other"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void stepConfig_statusOnlyWithResponseFile_failsAsConfigurationError() {
+        Map<String, Object> options = new HashMap<>();
+        options.put("statusOnly", "true");
+        options.put("printResponseToFile", "true");
+        options.put("file", "/tmp/response.txt");
+
+        try {
+            HttpStepConfig.of(options);
+            fail("Expected configuration exception.");
+        } catch (StepException se) {
+            assertEquals(StepFailureReason.ConfigurationFailure, se.getFailureReason());
+        }
+    }
+
+    @Test
+    public void stepConfig_invalidNumber_failsAsConfigurationError() {
+        Map<String, Object> options = new HashMap<>();
+        options.put("timeout", "soon");
+
+        try {
+            HttpStepConfig.of(options);
+            fail("Expected configuration exception.");
+        } catch (StepException se) {
+            assertEquals(StepFailureReason.ConfigurationFailure, se.getFailureReason());
+        }
+    }
+
+    @Test
+    public void responseCodeMatcher_matchesCodesRangesAndGroups() {
+        ResponseCodeMatcher matcher = ResponseCodeMatcher.compile("200, 204-206,4xx");
+
+        assertTrue(matcher.matches(200));
+        assertTrue(matcher.matches(205));
+        assertTrue(matcher.matches(451));
+        assertFalse(matcher.matches(201));
+        assertFalse(matcher.matches(500));
+    }
+
+    @Test
+    public void responseCodeMatcher_malformedEntries_keptOnTheCachedMatcher() {
+        ResponseCodeMatcher matcher = ResponseCodeMatcher.compile("201,2x0");
+        assertSame(matcher, ResponseCodeMatcher.compile("201,2x0"));
+
+        assertEquals(Arrays.asList("2x0"), matcher.getRejectedEntries());
+        assertTrue(matcher.matches(201));
+        assertFalse(matcher.matches(200));
+    }
+
+    @Test
+    public void stepConfig_malformedResponseCode_warnedByEveryExecution() throws Exception {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", "http://localhost/codes");
+        options.put("responseCode", "202,2y0");
+        PluginLogger first = mock(PluginLogger.class);
+        PluginLogger second = mock(PluginLogger.class);
+
+        HttpStepConfig.of(options, null);
+        HttpStepConfig.of(options, first);
+        HttpStepConfig.of(options, second);
+
+        verify(first).log(1, "Warning: Ignoring malformed responseCode entry: '2y0'");
+        verify(second).log(1, "Warning: Ignoring malformed responseCode entry: '2y0'");
+    }
+
+    @Test
+    public void responseCodeMatcher_blankExpression_isUndefined() {
+        assertFalse(ResponseCodeMatcher.compile(" ").isDefined());
+        assertFalse(isExpectedResponseCode(200, null));
+    }
+
+    @Test
+    public void prettyPrint_json_matchesGsonFormatting() {
+        HttpResponse response = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        response.setEntity(new StringEntity("{\"a\":1.50,\"b\":null,\"c\":[true,\"<x>\"]}", ContentType.APPLICATION_JSON));
+
+        assertEquals("{\n  \"a\": 1.50,\n  \"c\": [\n    true,\n    \"\\u003cx\\u003e\"\n  ]\n}",
+                builder.prettyPrint(response));
+    }
+
+    @Test
+    public void prettyPrint_severalJsonValues_printsUnformatted() {
+        builder.setLog(mock(PluginLogger.class));
+        HttpResponse response = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        response.setEntity(new StringEntity("{\"a\":1}\n{\"b\":2}\n", ContentType.APPLICATION_JSON));
+
+        assertEquals("{\"a\":1}\n{\"b\":2}\n", builder.prettyPrint(response));
+    }
+
+    @Test
+    public void prettyPrint_xml_indentsElements() {
+        HttpResponse response = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        response.setEntity(new StringEntity("<a><b> text </b><c><d>1</d></c></a>", ContentType.APPLICATION_XML));
+
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<a>\n  <b>text</b>\n  <c>\n    <d>1</d>\n  </c>\n</a>\n",
+                builder.prettyPrint(response));
+    }
+
+    @Test
+    public void prettyPrint_malformedXml_printsUnformatted() {
+        builder.setLog(mock(PluginLogger.class));
+        HttpResponse response = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        response.setEntity(new StringEntity("<a><b></a>", ContentType.APPLICATION_XML));
+
+        assertEquals("<a><b></a>", builder.prettyPrint(response));
+    }
+
+    @Test
+    public void prettyPrint_text_usesDeclaredCharsetAndKeepsLineEndings() {
+        HttpResponse response = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        response.setEntity(new StringEntity("caf\u00e9\r\nna\u00efve\n", ContentType.create("text/plain", "ISO-8859-1")));
+
+        assertEquals("caf\u00e9\r\nna\u00efve\n", builder.prettyPrint(response));
+    }
+
+    @Test
+    public void prettyPrint_jsonWithoutCharset_isReadAsUtf8() {
+        StringEntity entity = new StringEntity("{\"name\":\"\u00e9t\u00e9\"}", ContentType.create("application/json", "UTF-8"));
+        entity.setContentType("application/json");
+        HttpResponse response = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 200, "OK");
+        response.setEntity(entity);
+
+        assertEquals("{\n  \"name\": \"\u00e9t\u00e9\"\n}", builder.prettyPrint(response));
+    }
+
+    @Test
+    public void expectContinue_largeBody_waitsForContinue() throws StepException {
+        builder.setLog(mock(PluginLogger.class));
+        Map<String, Object> options = new HashMap<>();
+        options.put("expectContinue", "true");
+        options.put("expectContinueThreshold", "10");
+
+        HttpUriRequest large = RequestBuilder.post("http://localhost/upload")
+                .setEntity(new StringEntity("0123456789abcdef", ContentType.TEXT_PLAIN))
+                .build();
+        builder.setExpectContinue(HttpStepConfig.of(options), large);
+
+        assertTrue(((HttpRequestBase) large).getConfig().isExpectContinueEnabled());
+    }
+
+    @Test
+    public void expectContinue_smallBody_sendsBodyRightAway() throws StepException {
+        builder.setLog(mock(PluginLogger.class));
+        Map<String, Object> options = new HashMap<>();
+        options.put("expectContinue", "true");
+        options.put("expectContinueThreshold", "10");
+
+        HttpUriRequest small = RequestBuilder.post("http://localhost/upload")
+                .setEntity(new StringEntity("0123", ContentType.TEXT_PLAIN))
+                .build();
+        builder.setExpectContinue(HttpStepConfig.of(options), small);
+
+        RequestConfig requestConfig = ((HttpRequestBase) small).getConfig();
+        assertTrue(requestConfig == null || !requestConfig.isExpectContinueEnabled());
+    }
+
+    @Test
+    public void atomicFile_keepsTheTargetPermissions() throws IOException {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+
+        Path dir = Files.createTempDirectory("atomic-file");
+        File target = dir.resolve("response.txt").toFile();
+        try {
+            Files.write(target.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+            Files.setPosixFilePermissions(target.toPath(), PosixFilePermissions.fromString("rw-rw-r--"));
+
+            AtomicFile.write(target, out -> out.write("new".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("rw-rw-r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(target.toPath())));
+
+            Files.setPosixFilePermissions(target.toPath(), PosixFilePermissions.fromString("rw-------"));
+            AtomicFile.copy(target, new ByteArrayInputStream("copied".getBytes(StandardCharsets.UTF_8)));
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(target.toPath())));
+            assertEquals("copied", new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(target.toPath());
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void atomicFile_newFileIsNotOwnerOnly() throws IOException {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+
+        Path dir = Files.createTempDirectory("atomic-file");
+        Path probe = Files.createFile(dir.resolve("probe.txt"));
+        File target = dir.resolve("response.txt").toFile();
+        try {
+            AtomicFile.write(target, out -> out.write('x'));
+            assertEquals("New files get the same permissions as any file the process creates",
+                    Files.getPosixFilePermissions(probe), Files.getPosixFilePermissions(target.toPath()));
+        } finally {
+            Files.deleteIfExists(target.toPath());
+            Files.deleteIfExists(probe);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void multipart_contentStreamMatchesWrittenBody() throws IOException {
+        MultipartEntity entity = new MultipartEntity(Arrays.asList(
+                new MultipartEntity.Part("name", null, null, new StringEntity("value", ContentType.TEXT_PLAIN)),
+                new MultipartEntity.Part("file", "data.json", "application/json", new StringEntity("{\"a\":1}", ContentType.APPLICATION_JSON))),
+                true);
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        entity.writeTo(written);
+
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try (InputStream in = entity.getContent()) {
+            byte[] buffer = new byte[7];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                read.write(buffer, 0, n);
+            }
+        }
+
+        assertEquals(written.toString("UTF-8"), read.toString("UTF-8"));
+        assertEquals(entity.getContentLength(), read.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void multipart_contentTypeWithLineBreak_isRejected() {
+        new MultipartEntity.Part("file", "data.txt", "text/plain\r\nX-Injected: 1", new StringEntity("data", ContentType.TEXT_PLAIN));
+    }
+
+    @Test
+    public void responseBody_withoutEntity_hasUnknownLength() {
+        HttpResponse response = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1), 204, "No Content");
+
+        assertEquals(-1, ResponseBody.of(response).getContentLength());
+    }
 }
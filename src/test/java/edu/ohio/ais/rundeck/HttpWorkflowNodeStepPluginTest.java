@@ -9,11 +9,13 @@ import com.dtolabs.rundeck.core.execution.ExecutionLogger;
 import com.dtolabs.rundeck.core.execution.workflow.steps.StepFailureReason;
 import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepException;
 import com.dtolabs.rundeck.core.plugins.configuration.Description;
+import com.dtolabs.rundeck.core.plugins.configuration.Property;
 import com.dtolabs.rundeck.core.utils.IPropertyLookup;
 import com.dtolabs.rundeck.plugins.PluginLogger;
 import com.dtolabs.rundeck.plugins.step.PluginStepContext;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import edu.ohio.ais.rundeck.util.OAuthClientRegistry;
 import edu.ohio.ais.rundeck.util.OAuthClientTest;
 import org.apache.tools.ant.util.FileUtils;
 import org.junit.After;
@@ -44,8 +46,8 @@ public class HttpWorkflowNodeStepPluginTest {
     protected static final String ERROR_URL_500 = "/error500";
     protected static final String ERROR_URL_401 = "/error401";
     protected static final String NO_CONTENT_URL = "/nocontent204";
-    protected static final String OAUTH_CLIENT_MAP_KEY = OAuthClientTest.CLIENT_VALID + "@"
-            + OAuthClientTest.BASE_URI + OAuthClientTest.ENDPOINT_TOKEN;
+    protected static final String OAUTH_CLIENT_MAP_KEY = OAuthClientRegistry.key(OAuthClientTest.CLIENT_VALID,
+            OAuthClientTest.BASE_URI + OAuthClientTest.ENDPOINT_TOKEN, OAuthClientTest.CLIENT_SECRET);
 
     protected static final int REQUEST_TIMEOUT = 2*1000;
     protected static final int SLOW_TIMEOUT = 3*1000;
@@ -119,6 +121,7 @@ public class HttpWorkflowNodeStepPluginTest {
     public void setUp() {
         plugin = new HttpWorkflowNodeStepPlugin();
         oAuthClientTest.setUp(); // We need to setup the OAuth endpoints too.
+        OAuthClientRegistry.clear(); // Don't share tokens with earlier tests.
 
         // Test all endpoints by simply iterating.
         for(String method : HttpBuilder.HTTP_METHODS) {
@@ -214,6 +217,14 @@ public class HttpWorkflowNodeStepPluginTest {
         assertEquals(description.getName(), HttpWorkflowNodeStepPlugin.SERVICE_PROVIDER_NAME);
     }
 
+    @Test()
+    public void doesNotOfferExecutionMode() {
+        for(Property property : this.plugin.getDescription().getProperties()) {
+            assertFalse(property.getName().equals("executionMode"));
+            assertFalse(property.getName().equals("asyncThreads"));
+        }
+    }
+
     @Test()
     public void canValidateConfiguration() {
         Map<String, Object> options = new HashMap<>();
@@ -347,7 +358,7 @@ public class HttpWorkflowNodeStepPluginTest {
         }
     }
 
-    @Test(expected = NodeStepException.class)
+    @Test()
     public void canCallOAuthEndpointWithExpiredToken() throws NodeStepException {
         this.plugin.oauthClients.put(OAUTH_CLIENT_MAP_KEY, this.oAuthClientTest.setupClient(OAuthClientTest.ACCESS_TOKEN_EXPIRED));
 
@@ -357,6 +368,12 @@ public class HttpWorkflowNodeStepPluginTest {
 
             this.plugin.executeNodeStep(pluginContext, options, node );
         }
+
+        // The expired token was never validated, so it fails validation and
+        // is replaced before the first request.
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(OAuthClientTest.ENDPOINT_TOKEN)));
+        WireMock.verify(0, WireMock.anyRequestedFor(WireMock.urlEqualTo(REMOTE_OAUTH_EXPIRED_URL))
+                .withHeader("Authorization", WireMock.equalTo("Bearer " + OAuthClientTest.ACCESS_TOKEN_EXPIRED)));
     }
 
     @Test(expected = NodeStepException.class)
@@ -418,4 +435,23 @@ public class HttpWorkflowNodeStepPluginTest {
         this.plugin.executeNodeStep(pluginContext, options, node );
         assertNotNull(readFileAsString(testResource.toString()));
     }
+
+    @Test
+    public void canStreamUnformattedContentToFile() throws NodeStepException, IOException {
+        WireMock.stubFor(WireMock.request("GET", WireMock.urlEqualTo("/download"))
+                .willReturn(WireMock.aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/octet-stream")
+                        .withBody("line1\r\nline2")));
+
+        Map<String, Object> options = new HashMap<>();
+
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + "/download");
+        options.put("method", "GET");
+        options.put("printResponseToFile",true);
+        options.put("file", testResource);
+
+        this.plugin.executeNodeStep(pluginContext, options, node );
+        assertEquals("line1\r\nline2", readFileAsString(testResource.toString()));
+    }
 }
@@ -3,27 +3,51 @@ package edu.ohio.ais.rundeck;
 import com.dtolabs.rundeck.core.common.Framework;
 import com.dtolabs.rundeck.core.common.FrameworkProject;
 import com.dtolabs.rundeck.core.common.FrameworkProjectMgr;
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
 import com.dtolabs.rundeck.core.execution.ExecutionContext;
 import com.dtolabs.rundeck.core.execution.workflow.steps.PluginStepContextImpl;
 import com.dtolabs.rundeck.core.execution.workflow.steps.StepException;
 import com.dtolabs.rundeck.core.execution.workflow.steps.StepFailureReason;
 import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepException;
 import com.dtolabs.rundeck.core.plugins.configuration.Description;
+import com.dtolabs.rundeck.core.plugins.configuration.Property;
 import com.dtolabs.rundeck.core.utils.IPropertyLookup;
 import com.dtolabs.rundeck.plugins.PluginLogger;
 import com.dtolabs.rundeck.plugins.step.PluginStepContext;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import edu.ohio.ais.rundeck.util.OAuthClientRegistry;
 import edu.ohio.ais.rundeck.util.OAuthClientTest;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.Matchers;
 import org.mockito.Mockito;
-
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
@@ -39,8 +63,12 @@ public class HttpWorkflowStepPluginTest {
     protected static final String ERROR_URL_400 = "/error400";
     protected static final String ERROR_URL_401 = "/error401";
     protected static final String NO_CONTENT_URL = "/nocontent204";
-    protected static final String OAUTH_CLIENT_MAP_KEY = OAuthClientTest.CLIENT_VALID + "@"
-            + OAuthClientTest.BASE_URI + OAuthClientTest.ENDPOINT_TOKEN;
+    protected static final String NODE_URL = "/node/";
+    protected static final String ERROR_BODY_URL = "/error-body";
+    protected static final String PROGRESS_URL = "/progress";
+    protected static final String JSON_PROGRESS_URL = "/progress-json";
+    protected static final String OAUTH_CLIENT_MAP_KEY = OAuthClientRegistry.key(OAuthClientTest.CLIENT_VALID,
+            OAuthClientTest.BASE_URI + OAuthClientTest.ENDPOINT_TOKEN, OAuthClientTest.CLIENT_SECRET);
 
     protected static final int REQUEST_TIMEOUT = 2*1000;
     protected static final int SLOW_TIMEOUT = 3*1000;
@@ -105,6 +133,7 @@ public class HttpWorkflowStepPluginTest {
     public void setUp() {
         plugin = new HttpWorkflowStepPlugin();
         oAuthClientTest.setUp(); // We need to setup the OAuth endpoints too.
+        OAuthClientRegistry.clear(); // Don't share tokens with earlier tests.
 
         // Test all endpoints by simply iterating.
         for(String method : HttpBuilder.HTTP_METHODS) {
@@ -155,6 +184,36 @@ public class HttpWorkflowStepPluginTest {
                             .withStatus(204)));
         }
 
+        // Per-node endpoints, one of which fails
+        WireMock.stubFor(WireMock.request("GET", WireMock.urlMatching(NODE_URL + ".*"))
+                .willReturn(WireMock.aResponse().withStatus(200)));
+        WireMock.stubFor(WireMock.request("POST", WireMock.urlMatching(NODE_URL + ".*"))
+                .willReturn(WireMock.aResponse().withStatus(200)));
+        WireMock.stubFor(WireMock.request("GET", WireMock.urlEqualTo(NODE_URL + "broken"))
+                .willReturn(WireMock.aResponse().withStatus(500)));
+
+        // 500 Error with a plain text body
+        WireMock.stubFor(WireMock.request("GET", WireMock.urlEqualTo(ERROR_BODY_URL))
+                .willReturn(WireMock.aResponse()
+                        .withStatus(500)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("database unavailable")));
+
+        // Progress report written a line at a time
+        WireMock.stubFor(WireMock.request("GET", WireMock.urlEqualTo(PROGRESS_URL))
+                .willReturn(WireMock.aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/plain")
+                        .withBody("step 1 done\nstep 2 done\nstep 3 done\n")));
+
+        // JSON progress events, sent a second apart
+        WireMock.stubFor(WireMock.request("GET", WireMock.urlEqualTo(JSON_PROGRESS_URL))
+                .willReturn(WireMock.aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json")
+                        .withBody("{\"step\":1}\n{\"step\":2}\n")
+                        .withChunkedDribbleDelay(2, 2000)));
+
         // Simple bogus URL that yields a 404
         WireMock.stubFor(WireMock.request("GET", WireMock.urlEqualTo(BOGUS_URL))
                         .willReturn(WireMock.aResponse().withStatus(404)));
@@ -267,6 +326,14 @@ public class HttpWorkflowStepPluginTest {
         }
     }
 
+    @Test()
+    public void doesNotOfferExecutionMode() {
+        for(Property property : this.plugin.getDescription().getProperties()) {
+            assertFalse(property.getName().equals("executionMode"));
+            assertFalse(property.getName().equals("asyncThreads"));
+        }
+    }
+
     @Test(expected = StepException.class)
     public void canHandle500Error() throws StepException {
         Map<String, Object> options = new HashMap<>();
@@ -422,7 +489,7 @@ public class HttpWorkflowStepPluginTest {
         }
     }
 
-    @Test(expected = StepException.class)
+    @Test()
     public void canCallOAuthEndpointWithExpiredToken() throws StepException {
         this.plugin.oauthClients.put(OAUTH_CLIENT_MAP_KEY, this.oAuthClientTest.setupClient(OAuthClientTest.ACCESS_TOKEN_EXPIRED));
 
@@ -432,6 +499,20 @@ public class HttpWorkflowStepPluginTest {
 
             this.plugin.executeStep(pluginContext, options);
         }
+
+        // The expired token was never validated, so it fails validation and
+        // is replaced before the first request.
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(OAuthClientTest.ENDPOINT_TOKEN)));
+        WireMock.verify(0, WireMock.anyRequestedFor(WireMock.urlEqualTo(REMOTE_OAUTH_EXPIRED_URL))
+                .withHeader("Authorization", WireMock.equalTo("Bearer " + OAuthClientTest.ACCESS_TOKEN_EXPIRED)));
+    }
+
+    @Test()
+    public void sharesOAuthTokensBetweenPluginInstances() throws StepException {
+        this.plugin.executeStep(pluginContext, this.getOAuthOptions("GET"));
+        new HttpWorkflowStepPlugin().executeStep(pluginContext, this.getOAuthOptions("GET"));
+
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(OAuthClientTest.ENDPOINT_TOKEN)));
     }
 
     @Test(expected = StepException.class)
@@ -463,4 +544,446 @@ public class HttpWorkflowStepPluginTest {
 
         this.plugin.executeStep(pluginContext, options);
     }
+
+    @Test
+    public void canSendRequestToEachNode() throws StepException {
+        NodeSetImpl nodes = new NodeSetImpl();
+        nodes.putNode(new NodeEntryImpl("node1"));
+        nodes.putNode(new NodeEntryImpl("node2"));
+        when(pluginContext.getNodes()).thenReturn(nodes);
+
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + NODE_URL + "${node.name}");
+        options.put("method", "GET");
+        options.put("nodeFanOut", "true");
+        options.put("fanOutParallelism", "2");
+
+        this.plugin.executeStep(pluginContext, options);
+
+        WireMock.verify(WireMock.getRequestedFor(WireMock.urlEqualTo(NODE_URL + "node1")));
+        WireMock.verify(WireMock.getRequestedFor(WireMock.urlEqualTo(NODE_URL + "node2")));
+    }
+
+    @Test
+    public void canSendSharedBodyToEachNode() throws StepException {
+        NodeSetImpl nodes = new NodeSetImpl();
+        nodes.putNode(new NodeEntryImpl("node1"));
+        nodes.putNode(new NodeEntryImpl("node2"));
+        when(pluginContext.getNodes()).thenReturn(nodes);
+
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + NODE_URL + "${node.name}");
+        options.put("method", "POST");
+        options.put("body", "{\"status\":\"ok\"}");
+        options.put("nodeFanOut", "true");
+
+        this.plugin.executeStep(pluginContext, options);
+
+        WireMock.verify(WireMock.postRequestedFor(WireMock.urlEqualTo(NODE_URL + "node1"))
+                .withRequestBody(WireMock.equalTo("{\"status\":\"ok\"}")));
+        WireMock.verify(WireMock.postRequestedFor(WireMock.urlEqualTo(NODE_URL + "node2"))
+                .withRequestBody(WireMock.equalTo("{\"status\":\"ok\"}")));
+    }
+
+    @Test
+    public void canSendBodyFromFile() throws StepException, IOException {
+        File bodyFile = File.createTempFile("http-step-body", ".json");
+        bodyFile.deleteOnExit();
+        Files.write(bodyFile.toPath(), "{\"artifact\":\"build-42\"}".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + NODE_URL + "upload");
+        options.put("method", "POST");
+        options.put("bodySource", "File");
+        options.put("bodyFile", bodyFile.getAbsolutePath());
+
+        this.plugin.executeStep(pluginContext, options);
+
+        WireMock.verify(WireMock.postRequestedFor(WireMock.urlEqualTo(NODE_URL + "upload"))
+                .withRequestBody(WireMock.equalTo("{\"artifact\":\"build-42\"}")));
+    }
+
+    @Test
+    public void canSendMultipartBody() throws StepException, IOException {
+        File bundle = File.createTempFile("http-step-bundle", ".bin");
+        bundle.deleteOnExit();
+        Files.write(bundle.toPath(), "firmware-bytes".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + NODE_URL + "upload");
+        options.put("method", "POST");
+        options.put("bodySource", "Multipart");
+        options.put("multipartParts", "- name: manifest\n"
+                + "  value: '{\"version\": \"1.2\"}'\n"
+                + "  contentType: application/json\n"
+                + "- name: bundle\n"
+                + "  file: " + bundle.getAbsolutePath() + "\n");
+
+        this.plugin.executeStep(pluginContext, options);
+
+        WireMock.verify(WireMock.postRequestedFor(WireMock.urlEqualTo(NODE_URL + "upload"))
+                .withHeader("Content-Type", WireMock.containing("multipart/form-data; boundary="))
+                .withRequestBody(WireMock.containing("Content-Disposition: form-data; name=\"manifest\"\r\n"
+                        + "Content-Type: application/json\r\n\r\n{\"version\": \"1.2\"}\r\n"))
+                .withRequestBody(WireMock.containing("Content-Disposition: form-data; name=\"bundle\"; filename=\""
+                        + bundle.getName() + "\"\r\nContent-Type: application/octet-stream\r\n\r\nfirmware-bytes\r\n")));
+    }
+
+    @Test
+    public void uploadsBodyOnceWhenTokenIsRefreshedAfterExpectContinue() throws Exception {
+        this.plugin.oauthClients.put(OAUTH_CLIENT_MAP_KEY, this.oAuthClientTest.setupClient(OAuthClientTest.ACCESS_TOKEN_EXPIRED));
+
+        try (UploadServer server = new UploadServer()) {
+            Map<String, Object> options = this.getOAuthOptions("PUT");
+            options.remove("oauthValidateEndpoint");
+            options.put("remoteUrl", "http://localhost:" + server.getPort() + "/upload");
+            options.put("body", "{\"artifact\":\"build-42\"}");
+            options.put("expectContinue", "true");
+            options.put("expectContinueThreshold", "1");
+
+            this.plugin.executeStep(pluginContext, options);
+
+            // Rejected before the body was sent, then sent once with the new token
+            assertEquals(Arrays.asList("Bearer " + OAuthClientTest.ACCESS_TOKEN_EXPIRED,
+                    "Bearer " + OAuthClientTest.ACCESS_TOKEN_VALID), server.authorizations);
+            assertEquals(Arrays.asList("{\"artifact\":\"build-42\"}"), server.bodies);
+        }
+
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(OAuthClientTest.ENDPOINT_TOKEN)));
+    }
+
+    @Test
+    public void compressesBodiesAboveThreshold() throws StepException {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + NODE_URL + "bulk");
+        options.put("method", "POST");
+        options.put("body", "{\"items\":[1,2,3]}");
+        options.put("compressRequestThreshold", "10");
+
+        this.plugin.executeStep(pluginContext, options);
+
+        WireMock.verify(WireMock.postRequestedFor(WireMock.urlEqualTo(NODE_URL + "bulk"))
+                .withHeader("Content-Encoding", WireMock.equalTo("gzip")));
+    }
+
+    @Test
+    public void leavesBodiesBelowThresholdUncompressed() throws StepException {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + NODE_URL + "small");
+        options.put("method", "POST");
+        options.put("body", "{}");
+        options.put("compressRequestThreshold", "10");
+
+        this.plugin.executeStep(pluginContext, options);
+
+        WireMock.verify(WireMock.postRequestedFor(WireMock.urlEqualTo(NODE_URL + "small"))
+                .withoutHeader("Content-Encoding")
+                .withRequestBody(WireMock.equalTo("{}")));
+    }
+
+    @Test(expected = StepException.class)
+    public void failsWhenBodyFileIsMissing() throws StepException {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + NODE_URL + "upload");
+        options.put("method", "POST");
+        options.put("bodySource", "File");
+        options.put("bodyFile", "/no/such/body.json");
+
+        this.plugin.executeStep(pluginContext, options);
+    }
+
+    @Test
+    public void reportsSentNodesWhenPreparingANodeFails() throws IOException {
+        NodeSetImpl nodes = new NodeSetImpl();
+        nodes.putNode(new NodeEntryImpl("node1"));
+        nodes.putNode(new NodeEntryImpl("node2"));
+        nodes.putNode(new NodeEntryImpl("node3"));
+        when(pluginContext.getNodes()).thenReturn(nodes);
+
+        // Every node but the last one sent has a body file.
+        File bodyDir = Files.createTempDirectory("http-step-bodies").toFile();
+        bodyDir.deleteOnExit();
+        List<INodeEntry> order = new ArrayList<>(nodes.getNodes());
+        for(INodeEntry node : order.subList(0, order.size() - 1)) {
+            File bodyFile = new File(bodyDir, node.getNodename() + ".json");
+            bodyFile.deleteOnExit();
+            Files.write(bodyFile.toPath(), "{}".getBytes(StandardCharsets.UTF_8));
+        }
+
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + NODE_URL + "${node.name}");
+        options.put("method", "POST");
+        options.put("bodySource", "File");
+        options.put("bodyFile", bodyDir.getAbsolutePath() + "/${node.name}.json");
+        options.put("nodeFanOut", "true");
+
+        try {
+            this.plugin.executeStep(pluginContext, options);
+            fail("Expected exception " + StepException.class.getCanonicalName() + " not thrown.");
+        } catch (StepException se) {
+            assertTrue(se.getMessage().contains("Cannot read request body file"));
+        }
+
+        for(INodeEntry node : order.subList(0, order.size() - 1)) {
+            Mockito.verify(pluginLogger).log(Matchers.anyInt(), Matchers.matches(node.getNodename() + ": (OK|CANCELLED)"));
+        }
+    }
+
+    @Test
+    public void failsWhenAnyNodeRequestFails() {
+        NodeSetImpl nodes = new NodeSetImpl();
+        nodes.putNode(new NodeEntryImpl("node1"));
+        nodes.putNode(new NodeEntryImpl("broken"));
+        when(pluginContext.getNodes()).thenReturn(nodes);
+
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + NODE_URL + "${node.name}");
+        options.put("method", "GET");
+        options.put("nodeFanOut", "true");
+
+        try {
+            this.plugin.executeStep(pluginContext, options);
+            fail("Expected exception " + StepException.class.getCanonicalName() + " not thrown.");
+        } catch (StepException se) {
+            assertTrue(se.getMessage().contains("1 of 2 nodes"));
+            assertTrue(se.getMessage().contains("broken"));
+        }
+
+        WireMock.verify(WireMock.getRequestedFor(WireMock.urlEqualTo(NODE_URL + "node1")));
+    }
+
+    @Test
+    public void includesErrorBodyWhenPrintingResponse() {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + ERROR_BODY_URL);
+        options.put("method", "GET");
+        options.put("printResponse", true);
+
+        try {
+            this.plugin.executeStep(pluginContext, options);
+            fail("Expected exception " + StepException.class.getCanonicalName() + " not thrown.");
+        } catch (StepException se) {
+            assertTrue(se.getMessage().contains("database unavailable"));
+        }
+
+        Mockito.verify(pluginLogger).log(Mockito.eq(2), Mockito.contains("database unavailable"));
+    }
+
+    @Test
+    public void statusOnlyLeavesBodyOutOfFailure() {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + ERROR_BODY_URL);
+        options.put("method", "GET");
+        options.put("statusOnly", true);
+        options.put("printResponse", true);
+
+        try {
+            this.plugin.executeStep(pluginContext, options);
+            fail("Expected exception " + StepException.class.getCanonicalName() + " not thrown.");
+        } catch (StepException se) {
+            assertEquals("HTTP request failed with status code: 500", se.getMessage());
+        }
+
+        Mockito.verify(pluginLogger, Mockito.never()).log(Mockito.eq(2), Mockito.contains("database unavailable"));
+    }
+
+    @Test
+    public void errorBodyIsCappedInFailure() {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + ERROR_BODY_URL);
+        options.put("method", "GET");
+        options.put("maxErrorBodySize", "8");
+
+        try {
+            this.plugin.executeStep(pluginContext, options);
+            fail("Expected exception " + StepException.class.getCanonicalName() + " not thrown.");
+        } catch (StepException se) {
+            assertEquals("HTTP request failed with status code: 500: database...", se.getMessage());
+        }
+    }
+
+    @Test
+    public void printedResponseKeepsStartAndEnd() throws StepException {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + ERROR_BODY_URL);
+        options.put("method", "GET");
+        options.put("responseCode", "5xx");
+        options.put("printResponse", true);
+        options.put("maxLoggedSize", "8");
+
+        this.plugin.executeStep(pluginContext, options);
+
+        Mockito.verify(pluginLogger).log(Mockito.eq(2), Mockito.startsWith("data\n... ["));
+        Mockito.verify(pluginLogger).log(Mockito.eq(2), Mockito.contains(" bytes omitted] ...\n"));
+    }
+
+    @Test
+    public void streamedResponseIsLoggedLineByLine() throws StepException {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + PROGRESS_URL);
+        options.put("method", "GET");
+        options.put("printResponse", true);
+        options.put("streamResponse", true);
+        options.put("logFlushInterval", "0");
+
+        this.plugin.executeStep(pluginContext, options);
+
+        Mockito.verify(pluginLogger).log(2, "step 1 done");
+        Mockito.verify(pluginLogger).log(2, "step 2 done");
+        Mockito.verify(pluginLogger).log(2, "step 3 done");
+    }
+
+    @Test
+    public void streamedResponseKeepsStart() throws StepException {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + PROGRESS_URL);
+        options.put("method", "GET");
+        options.put("printResponse", true);
+        options.put("streamResponse", true);
+        options.put("logFlushInterval", "0");
+        options.put("maxLoggedSize", "12");
+
+        this.plugin.executeStep(pluginContext, options);
+
+        Mockito.verify(pluginLogger).log(2, "step 1 done");
+        Mockito.verify(pluginLogger, Mockito.never()).log(2, "step 2 done");
+        Mockito.verify(pluginLogger).log(Mockito.eq(2), Mockito.startsWith("... ["));
+    }
+
+    @Test
+    public void streamedJsonResponseIsLoggedAsItArrives() throws StepException {
+        Map<String, Object> options = new HashMap<>();
+        options.put("remoteUrl", OAuthClientTest.BASE_URI + JSON_PROGRESS_URL);
+        options.put("method", "GET");
+        options.put("printResponse", true);
+        options.put("streamResponse", true);
+        options.put("logFlushInterval", "0");
+
+        final long[] firstLogged = new long[1];
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                firstLogged[0] = System.currentTimeMillis();
+                return null;
+            }
+        }).when(pluginLogger).log(2, "{\"step\":1}");
+
+        this.plugin.executeStep(pluginContext, options);
+        long finished = System.currentTimeMillis();
+
+        Mockito.verify(pluginLogger).log(2, "{\"step\":2}");
+        assertTrue("The first event should be logged before the second arrives",
+                firstLogged[0] > 0 && finished - firstLogged[0] >= 500);
+    }
+
+    @Test
+    public void secretsListBodyKeyOnlyForKeyStorageBodies() {
+        Map<String, Object> options = new HashMap<>();
+        options.put("bodySource", HttpBuilder.BODY_KEY_STORAGE);
+        options.put("bodyStoragePath", "keys/project/body.json");
+
+        List<String> secrets = this.plugin.listSecretsPathWorkflowStep(pluginContext.getExecutionContext(), options);
+        assertEquals(1, secrets.size());
+        assertEquals("keys/project/body.json", secrets.get(0));
+
+        options.put("bodySource", HttpBuilder.BODY_FILE);
+        assertTrue(this.plugin.listSecretsPathWorkflowStep(pluginContext.getExecutionContext(), options).isEmpty());
+    }
+
+    /**
+     * Minimal HTTP server on a plain socket that only reads a request body
+     * after answering 100 Continue. WireMock reads every body, which makes
+     * its server send 100 Continue even for requests it then rejects.
+     * Requests with the expired token are rejected with 401.
+     */
+    private static class UploadServer implements Runnable, Closeable {
+        final List<String> authorizations = new CopyOnWriteArrayList<>();
+        final List<String> bodies = new CopyOnWriteArrayList<>();
+        private final ServerSocket socket;
+
+        UploadServer() throws IOException {
+            socket = new ServerSocket(0);
+            Thread thread = new Thread(this, "upload-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while(!socket.isClosed()) {
+                try (Socket connection = socket.accept()) {
+                    handle(connection);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void handle(Socket connection) throws IOException {
+            InputStream in = connection.getInputStream();
+            OutputStream out = connection.getOutputStream();
+            String authorization = null;
+            boolean expectContinue = false;
+            int length = 0;
+
+            String line;
+            while(!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if(colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if(name.equalsIgnoreCase("Authorization")) {
+                    authorization = value;
+                } else if(name.equalsIgnoreCase("Expect")) {
+                    expectContinue = value.equalsIgnoreCase("100-continue");
+                } else if(name.equalsIgnoreCase("Content-Length")) {
+                    length = Integer.parseInt(value);
+                }
+            }
+            authorizations.add(authorization);
+
+            if(("Bearer " + OAuthClientTest.ACCESS_TOKEN_EXPIRED).equals(authorization)) {
+                respond(out, "401 Unauthorized");
+                return;
+            }
+
+            if(expectContinue) {
+                out.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+            }
+            byte[] body = new byte[length];
+            new DataInputStream(in).readFully(body);
+            bodies.add(new String(body, StandardCharsets.UTF_8));
+
+            respond(out, "200 OK");
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while((c = in.read()) != -1 && c != '\n') {
+                if(c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private static void respond(OutputStream out, String status) throws IOException {
+            out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
 }
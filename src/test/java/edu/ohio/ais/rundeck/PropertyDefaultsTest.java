@@ -0,0 +1,105 @@
+package edu.ohio.ais.rundeck;
+
+import com.dtolabs.rundeck.core.common.Framework;
+import com.dtolabs.rundeck.core.common.FrameworkProject;
+import com.dtolabs.rundeck.core.common.FrameworkProjectMgr;
+import com.dtolabs.rundeck.core.plugins.configuration.Description;
+import com.dtolabs.rundeck.core.plugins.configuration.Property;
+import com.dtolabs.rundeck.core.utils.IPropertyLookup;
+import com.dtolabs.rundeck.plugins.step.PluginStepContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PropertyDefaultsTest {
+
+    private PluginStepContext context;
+    private FrameworkProject project;
+    private IPropertyLookup frameworkProperties;
+    private Description description;
+
+    @Before
+    public void setUp() {
+        context = mock(PluginStepContext.class);
+        Framework framework = mock(Framework.class);
+        FrameworkProjectMgr projectMgr = mock(FrameworkProjectMgr.class);
+        project = mock(FrameworkProject.class);
+        frameworkProperties = mock(IPropertyLookup.class);
+
+        when(context.getFrameworkProject()).thenReturn("defaults");
+        when(context.getFramework()).thenReturn(framework);
+        when(framework.getFrameworkProjectMgr()).thenReturn(projectMgr);
+        when(projectMgr.getFrameworkProject(anyString())).thenReturn(project);
+        when(framework.getPropertyLookup()).thenReturn(frameworkProperties);
+
+        Property timeout = mock(Property.class);
+        when(timeout.getName()).thenReturn("timeout");
+        Property method = mock(Property.class);
+        when(method.getName()).thenReturn("method");
+        description = mock(Description.class);
+        when(description.getProperties()).thenReturn(Arrays.asList(timeout, method));
+    }
+
+    private static Map<String, String> projectProperties(String serviceName, String timeout) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("project.plugin.WorkflowStep." + serviceName + ".timeout", timeout);
+        return properties;
+    }
+
+    @Test
+    public void unchangedProject_isResolvedOnce() {
+        when(project.getConfigLastModifiedTime()).thenReturn(new Date(1000));
+        when(project.getProperties()).thenReturn(projectProperties("test", "5000"));
+
+        Map<String, Object> first = new HashMap<>();
+        Map<String, Object> second = new HashMap<>();
+        PropertyDefaults.apply("WorkflowStep", "test", description, first, context);
+        PropertyDefaults.apply("WorkflowStep", "test", description, second, context);
+
+        verify(project, times(1)).getProperties();
+        assertEquals("5000", first.get("timeout"));
+        assertEquals("5000", second.get("timeout"));
+    }
+
+    @Test
+    public void changedProject_isResolvedAgain() {
+        when(project.getConfigLastModifiedTime()).thenReturn(new Date(1000), new Date(2000));
+        when(project.getProperties()).thenReturn(projectProperties("changed", "5000"), projectProperties("changed", "9000"));
+
+        Map<String, Object> first = new HashMap<>();
+        Map<String, Object> second = new HashMap<>();
+        PropertyDefaults.apply("WorkflowStep", "changed", description, first, context);
+        PropertyDefaults.apply("WorkflowStep", "changed", description, second, context);
+
+        verify(project, times(2)).getProperties();
+        assertEquals("9000", second.get("timeout"));
+    }
+
+    @Test
+    public void frameworkDefaults_areLookedUpOnEveryCall() {
+        when(project.getConfigLastModifiedTime()).thenReturn(new Date(1000));
+        when(project.getProperties()).thenReturn(new HashMap<String, String>());
+        when(frameworkProperties.hasProperty("framework.plugin.WorkflowStep.framework.method")).thenReturn(true);
+        when(frameworkProperties.getProperty("framework.plugin.WorkflowStep.framework.method")).thenReturn("GET", "POST");
+
+        Map<String, Object> first = new HashMap<>();
+        Map<String, Object> second = new HashMap<>();
+        PropertyDefaults.apply("WorkflowStep", "framework", description, first, context);
+        PropertyDefaults.apply("WorkflowStep", "framework", description, second, context);
+
+        verify(project, times(1)).getProperties();
+        assertEquals("GET", first.get("method"));
+        assertEquals("POST", second.get("method"));
+    }
+}
@@ -0,0 +1,39 @@
+package edu.ohio.ais.rundeck.util;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class HttpClientCacheTest {
+
+    @After
+    public void tearDown() {
+        HttpClientCache.shutdown();
+    }
+
+    @Test
+    public void sharesPoolBetweenPoolSizesAndIdleTimeouts() throws Exception {
+        CloseableHttpClient small = HttpClientCache.getClient(new HttpClientCache.TransportSettings()
+                .setMaxTotal(5)
+                .setIdleTimeout(30));
+        CloseableHttpClient large = HttpClientCache.getClient(new HttpClientCache.TransportSettings()
+                .setMaxTotal(500)
+                .setIdleTimeout(300));
+
+        assertSame(small, large);
+    }
+
+    @Test
+    public void replacesPoolsLeftIdle() throws Exception {
+        CloseableHttpClient client = HttpClientCache.getClient(new HttpClientCache.TransportSettings());
+
+        HttpClientCache.sweep(System.currentTimeMillis());
+        assertSame(client, HttpClientCache.getClient(new HttpClientCache.TransportSettings()));
+
+        HttpClientCache.sweep(System.currentTimeMillis() + HttpClientCache.POOL_IDLE_EXPIRY + 1);
+        assertNotSame(client, HttpClientCache.getClient(new HttpClientCache.TransportSettings()));
+    }
+}
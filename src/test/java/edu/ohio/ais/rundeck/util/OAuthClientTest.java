@@ -11,11 +11,13 @@ import org.junit.Rule;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.Map;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
 public class OAuthClientTest {
     public static final String ACCESS_TOKEN_VALID = "1";
@@ -33,6 +35,8 @@ public class OAuthClientTest {
 
     public static final String CLIENT_VALID = "mockClient";
     public static final String CLIENT_FOREVER_EXPIRED = "foreverClient";
+    public static final String CLIENT_EXPIRING = "expiringClient";
+    public static final String CLIENT_SLOW = "slowClient";
     public static final String CLIENT_INVALID = "mockInvalidClient";
     public static final String CLIENT_INVALID_GRANT = "mockMisconfiguredClient";
     public static final String CLIENT_INVALID_GRANT_NO_DESCRIPTION = "mockMisconfiguredClientNoDescription";
@@ -119,6 +123,16 @@ public class OAuthClientTest {
                         .withStatus(200)
                         .withHeader(HttpHeaders.CONTENT_TYPE, OAuthClient.JSON_CONTENT_TYPE)
                         .withBody("{\"access_token\":\"" + ACCESS_TOKEN_VALID + "\",\"token_type\":\"bearer\"}")));
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo(ENDPOINT_TOKEN))
+                .withHeader(HttpHeaders.ACCEPT, WireMock.equalTo(OAuthClient.JSON_CONTENT_TYPE))
+                .withHeader(HttpHeaders.CONTENT_TYPE, WireMock.equalTo(OAuthClient.FORM_CONTENT_TYPE))
+                .withHeader(HttpHeaders.AUTHORIZATION, WireMock.equalTo("Basic " + Base64.encode(CLIENT_EXPIRING + ":" + CLIENT_SECRET)))
+                .withRequestBody(WireMock.matching(".*grant_type=client_credentials.*"))
+                .willReturn(WireMock.aResponse()
+                        .withStatus(200)
+                        .withHeader(HttpHeaders.CONTENT_TYPE, OAuthClient.JSON_CONTENT_TYPE)
+                        .withBody("{\"access_token\":\"" + ACCESS_TOKEN_VALID + "\",\"token_type\":\"bearer\",\"expires_in\":3600}")));
+
         WireMock.stubFor(WireMock.post(WireMock.urlEqualTo(ENDPOINT_TOKEN))
                 .withHeader(HttpHeaders.ACCEPT, WireMock.equalTo(OAuthClient.JSON_CONTENT_TYPE))
                 .withHeader(HttpHeaders.CONTENT_TYPE, WireMock.equalTo(OAuthClient.FORM_CONTENT_TYPE))
@@ -221,6 +235,218 @@ public class OAuthClientTest {
         assertEquals(client.accessToken, ACCESS_TOKEN_VALID);
     }
 
+    @Test()
+    public void canTrackTokenExpiry() throws HttpResponseException, IOException, OAuthClient.OAuthException {
+        OAuthClient client = new OAuthClient(OAuthClient.GrantType.CLIENT_CREDENTIALS, new TestLogger());
+        client.setTokenEndpoint(BASE_URI + ENDPOINT_TOKEN);
+        client.setCredentials(CLIENT_EXPIRING, CLIENT_SECRET);
+
+        long before = System.currentTimeMillis();
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken());
+
+        assertTrue(client.expiresAt >= before + 3600 * 1000);
+        assertTrue(client.expiresAt <= System.currentTimeMillis() + 3600 * 1000);
+        assertFalse(client.isExpired());
+    }
+
+    @Test()
+    public void canRefreshTokenAfterExpiry() throws HttpResponseException, IOException, OAuthClient.OAuthException {
+        OAuthClient client = setupClient(ACCESS_TOKEN_EXPIRED);
+        client.expiresAt = System.currentTimeMillis() - 1000;
+
+        assertTrue(client.isExpired());
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken());
+        assertEquals(0, client.expiresAt);
+    }
+
+    @Test()
+    public void refreshKeepsTokenAlreadyReplaced() throws HttpResponseException, IOException, OAuthClient.OAuthException {
+        OAuthClient client = setupClient();
+        client.getAccessToken();
+
+        // Another request was rejected with an older token
+        assertEquals(ACCESS_TOKEN_VALID, client.refreshAccessToken(ACCESS_TOKEN_EXPIRED));
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(ENDPOINT_TOKEN)));
+
+        // The current token itself was rejected
+        assertEquals(ACCESS_TOKEN_VALID, client.refreshAccessToken(ACCESS_TOKEN_VALID));
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlEqualTo(ENDPOINT_TOKEN)));
+    }
+
+    @Test()
+    public void configureDiscardsTokenForOldSecret() throws HttpResponseException, IOException, OAuthClient.OAuthException {
+        OAuthClient client = setupClient(ACCESS_TOKEN_VALID);
+
+        client.configure(CLIENT_SECRET, BASE_URI + ENDPOINT_VALIDATE);
+        assertEquals(ACCESS_TOKEN_VALID, client.accessToken);
+
+        client.configure("newSecret", BASE_URI + ENDPOINT_VALIDATE);
+        assertEquals(null, client.accessToken);
+    }
+
+    @Test()
+    public void usesTheSettingsOfEachCall() throws Exception {
+        OAuthClient client = setupClient();
+        OAuthClient.Settings withoutValidation = new OAuthClient.Settings(client.httpClient, 1000, null, 0, false);
+        OAuthClient.Settings withValidation = new OAuthClient.Settings(client.httpClient, 1000,
+                BASE_URI + ENDPOINT_VALIDATE, 0, false);
+
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken(new TestLogger(), withoutValidation));
+        WireMock.verify(0, WireMock.getRequestedFor(WireMock.urlEqualTo(ENDPOINT_VALIDATE)));
+
+        // A step validating tokens doesn't change how the other step's calls are made.
+        client.invalidateAccessToken();
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken(new TestLogger(), withValidation));
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken(new TestLogger(), withoutValidation));
+        WireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo(ENDPOINT_VALIDATE)));
+    }
+
+    @Test()
+    public void validatesTokenFetchedWithoutValidation() throws Exception {
+        OAuthClient client = setupClient();
+        OAuthClient.Settings withoutValidation = new OAuthClient.Settings(client.httpClient, 1000, null, 0, false);
+        OAuthClient.Settings withValidation = new OAuthClient.Settings(client.httpClient, 1000,
+                BASE_URI + ENDPOINT_VALIDATE, 0, false);
+
+        // The first step shares the client but has no validate endpoint
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken(new TestLogger(), withoutValidation));
+        WireMock.verify(0, WireMock.getRequestedFor(WireMock.urlEqualTo(ENDPOINT_VALIDATE)));
+
+        // The second step validates the token before using it, and only once
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken(new TestLogger(), withValidation));
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken(new TestLogger(), withValidation));
+        WireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo(ENDPOINT_VALIDATE)));
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlEqualTo(ENDPOINT_TOKEN)));
+    }
+
+    @Test()
+    public void validatesEachTokenOnce() throws HttpResponseException, IOException, OAuthClient.OAuthException {
+        OAuthClient client = setupClient(ACCESS_TOKEN_VALID);
+
+        client.doTokenValidate();
+        client.doTokenValidate();
+
+        WireMock.verify(1, WireMock.getRequestedFor(WireMock.urlEqualTo(ENDPOINT_VALIDATE)));
+    }
+
+    @Test()
+    public void validatesAgainAfterValidationLifetime() throws Exception {
+        OAuthClient client = setupClient(ACCESS_TOKEN_VALID);
+        client.setValidationTtl(1);
+
+        client.doTokenValidate();
+        Thread.sleep(10);
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken());
+
+        WireMock.verify(2, WireMock.getRequestedFor(WireMock.urlEqualTo(ENDPOINT_VALIDATE)));
+    }
+
+    @Test()
+    public void discardsTokenFailingBackgroundValidation() throws Exception {
+        OAuthClient client = setupClient();
+        client.setCredentials(CLIENT_FOREVER_EXPIRED, CLIENT_SECRET);
+        client.setValidateAsync(true);
+
+        // The token is handed out before the validation finds it belongs to another client
+        assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken());
+
+        for(int i = 0; i < 100 && client.accessToken != null; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(null, client.accessToken);
+
+        try {
+            client.getAccessToken();
+            fail("Expected the next token to be validated before use.");
+        } catch(OAuthClient.OAuthException expected) {
+            // validated synchronously this time
+        }
+    }
+
+    @Test()
+    public void timesOutOnSlowTokenEndpoint() throws Exception {
+        WireMock.stubFor(WireMock.post(WireMock.urlEqualTo(ENDPOINT_TOKEN))
+                .withHeader(HttpHeaders.AUTHORIZATION, WireMock.equalTo("Basic " + Base64.encode(CLIENT_SLOW + ":" + CLIENT_SECRET)))
+                .willReturn(WireMock.aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(5000)
+                        .withHeader(HttpHeaders.CONTENT_TYPE, OAuthClient.JSON_CONTENT_TYPE)
+                        .withBody("{\"access_token\":\"" + ACCESS_TOKEN_VALID + "\",\"token_type\":\"bearer\"}")));
+
+        OAuthClient client = setupClient();
+        client.setCredentials(CLIENT_SLOW, CLIENT_SECRET);
+        client.setTimeout(200);
+
+        long start = System.currentTimeMillis();
+        try {
+            client.getAccessToken();
+            fail("Expected the token request to time out.");
+        } catch(SocketTimeoutException expected) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    @Test()
+    public void releasesConnectionsToThePool() throws Exception {
+        OAuthClient client = setupClient();
+        client.setHttpClient(HttpClientCache.createClient(new HttpClientCache.TransportSettings()
+                .setMaxTotal(1)
+                .setMaxPerRoute(1)));
+        client.setTimeout(1000);
+
+        // Each request needs the single pooled connection back from the one before.
+        for(int i = 0; i < 3; i++) {
+            client.invalidateAccessToken();
+            assertEquals(ACCESS_TOKEN_VALID, client.getAccessToken());
+        }
+
+        client.setCredentials(CLIENT_INVALID, CLIENT_SECRET);
+        for(int i = 0; i < 3; i++) {
+            try {
+                client.doTokenRequest();
+                fail("Expected the token request to fail.");
+            } catch(HttpResponseException expected) {
+                assertEquals(401, expected.getStatusCode());
+            }
+        }
+    }
+
+    @Test()
+    public void registryKeySeparatesSecrets() {
+        String key = OAuthClientRegistry.key(CLIENT_VALID, BASE_URI + ENDPOINT_TOKEN, CLIENT_SECRET);
+
+        assertTrue(key.startsWith(CLIENT_VALID + "@" + BASE_URI + ENDPOINT_TOKEN + "#"));
+        assertFalse(key.contains(CLIENT_SECRET));
+        assertEquals(key, OAuthClientRegistry.key(CLIENT_VALID, BASE_URI + ENDPOINT_TOKEN, CLIENT_SECRET));
+        assertFalse(key.equals(OAuthClientRegistry.key(CLIENT_VALID, BASE_URI + ENDPOINT_TOKEN, "otherSecret")));
+    }
+
+    @Test()
+    public void registryClearStopsTheClients() {
+        OAuthClient client = setupClient(ACCESS_TOKEN_VALID);
+        OAuthClientRegistry.getClients().put("cleared", client);
+
+        OAuthClientRegistry.clear();
+
+        assertTrue(OAuthClientRegistry.getClients().isEmpty());
+        assertEquals(null, client.accessToken);
+    }
+
+    @Test()
+    public void registryKeepsOnlyTheMostRecentlyUsedClients() {
+        OAuthClientRegistry.clear();
+        try {
+            for(int i = 0; i < OAuthClientRegistry.MAX_CLIENTS + 10; i++) {
+                OAuthClientRegistry.getClients().put("client" + i, new OAuthClient(OAuthClient.GrantType.CLIENT_CREDENTIALS));
+            }
+
+            OAuthClientRegistry.evictIdle();
+            assertEquals(OAuthClientRegistry.MAX_CLIENTS, OAuthClientRegistry.getClients().size());
+        } finally {
+            OAuthClientRegistry.clear();
+        }
+    }
+
     @Test()
     public void canBuildErrorWithDescription() throws IOException, OAuthClient.OAuthException {
         OAuthClient client = this.setupClient();